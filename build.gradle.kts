@@ -46,6 +46,16 @@ dependencies {
     testImplementation("org.mockito:mockito-junit-jupiter:5.4.0")
 }
 
+// Benchmarks that only report numbers, so they don't run as part of `test` or `check`
+sourceSets {
+    create("benchmark") {
+        compileClasspath += sourceSets.main.get().output + sourceSets.test.get().output
+        runtimeClasspath += sourceSets.main.get().output + sourceSets.test.get().output
+    }
+}
+configurations["benchmarkImplementation"].extendsFrom(configurations.testImplementation.get())
+configurations["benchmarkRuntimeOnly"].extendsFrom(configurations.testRuntimeOnly.get())
+
 fun properties(key: String) = project.findProperty(key).toString()
 fun config(name: String) = project.findProperty(name).toString()
 val ideaVersion = config("ideaVersion")
@@ -68,6 +78,16 @@ tasks {
     test {
         useJUnitPlatform()
     }
+    //benchmark task, run on demand with ./gradlew benchmark
+    register<Test>("benchmark") {
+        description = "Runs the benchmarks and prints their measurements."
+        group = "verification"
+        testClassesDirs = sourceSets["benchmark"].output.classesDirs
+        classpath = sourceSets["benchmark"].runtimeClasspath
+        useJUnitPlatform()
+        testLogging.showStandardStreams = true
+        outputs.upToDateWhen { false }
+    }
     val copyStubs = register<Copy>("copyStubs") {
         dependsOn("prepareSandbox")
         from(projectDir) {
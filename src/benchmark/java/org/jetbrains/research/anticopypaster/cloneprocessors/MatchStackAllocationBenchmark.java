@@ -0,0 +1,208 @@
+package org.jetbrains.research.anticopypaster.cloneprocessors;
+
+import com.intellij.psi.*;
+import com.intellij.psi.util.PsiTreeUtil;
+import com.intellij.testFramework.fixtures.LightJavaCodeInsightFixtureTestCase;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Compares the bytes allocated by {@link TypeTwoCP#matchStack} against the matcher it
+ * replaced, which copied the whole scope stack in every {@code extend()}, streamed it
+ * for every scope check and scanned the alias map backwards. Both match the same pair
+ * of deeply nested Type-2 clones.
+ * The numbers are only printed, so this is run on demand with {@code ./gradlew benchmark}
+ * and is not part of {@code check}.
+ */
+public class MatchStackAllocationBenchmark extends LightJavaCodeInsightFixtureTestCase {
+    private static final int DEPTH = 10;
+    private static final int ROUNDS = 200;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * Builds a body declaring a variable and opening a loop at every level, with all names prefixed.
+     */
+    private static String body(String prefix) {
+        StringBuilder sb = new StringBuilder("int total = 0;\n");
+        for (int d = 0; d < DEPTH; d++) {
+            String value = prefix + "Value" + d;
+            String index = prefix + "Index" + d;
+            sb.append("int ").append(value).append(" = total + ").append(d).append(";\n");
+            sb.append("for (int ").append(index).append(" = 0; ").append(index).append(" < ").append(value)
+                    .append("; ").append(index).append("++) {\n");
+        }
+        sb.append("total += ").append(prefix).append("Value0;\n");
+        sb.append("}\n".repeat(DEPTH));
+        return sb.append("return total;\n").toString();
+    }
+
+    private static long allocatedBytes(Runnable task) {
+        long threadId = Thread.currentThread().getId();
+        long before = THREADS.getThreadAllocatedBytes(threadId);
+        task.run();
+        return THREADS.getThreadAllocatedBytes(threadId) - before;
+    }
+
+    public void testMatchStackAllocation() {
+        if (!THREADS.isThreadAllocatedMemorySupported()) return;
+        THREADS.setThreadAllocatedMemoryEnabled(true);
+        PsiJavaFile file = (PsiJavaFile) myFixture.configureByText("Clones.java",
+                "class Clones {\n"
+                        + "    int first() {\n" + body("first") + "    }\n"
+                        + "    int second() {\n" + body("second") + "    }\n"
+                        + "}\n");
+        PsiMethod[] methods = file.getClasses()[0].getMethods();
+        PsiCodeBlock bodyA = methods[0].getBody();
+        PsiCodeBlock bodyB = methods[1].getBody();
+        // The tree of a body has the body itself at position 0.
+        SignificantTree treeA = SignificantTree.forStatement(bodyA.getStatements()[0]);
+        SignificantTree treeB = SignificantTree.forStatement(bodyB.getStatements()[0]);
+
+        boolean[] matched = new boolean[2];
+        Runnable current = () -> {
+            for (int r = 0; r < ROUNDS; r++)
+                matched[0] = TypeTwoCP.matchStack(treeA, 0, treeB, 0, new MatchState(), new MatchState());
+        };
+        Runnable legacy = () -> {
+            for (int r = 0; r < ROUNDS; r++)
+                matched[1] = Legacy.matchStack(bodyA, bodyB, new Legacy.State(), new Legacy.State());
+        };
+        // Warm up both matchers so that the measurement doesn't include class loading or the JIT.
+        current.run();
+        legacy.run();
+        long currentBytes = allocatedBytes(current);
+        long legacyBytes = allocatedBytes(legacy);
+        assertTrue(matched[0]);
+        assertTrue(matched[1]);
+        System.out.println("matchStack over " + ROUNDS + " rounds at depth " + DEPTH + ": "
+                + currentBytes + " bytes with MatchState, "
+                + legacyBytes + " bytes with the copying scope stack");
+    }
+
+    /**
+     * The Type-2 matcher as it was before {@link MatchState} shared its scope,
+     * walking the PSI directly. Kept here only as the baseline to measure against.
+     */
+    private static final class Legacy {
+        private record State(Stack<Variable> scope, Set<PsiVariable> liveIn, List<Parameter> parameters,
+                             List<Variable> aliasMap, List<PsiTypeElement> typeParams) {
+            State() {
+                this(new Stack<>(), new HashSet<>(), new ArrayList<>(), new ArrayList<>(), new ArrayList<>());
+            }
+
+            State extend() {
+                Stack<Variable> newStack = new Stack<>();
+                newStack.addAll(scope);
+                return new State(newStack, liveIn, parameters, aliasMap, typeParams);
+            }
+
+            int getAliasID(PsiElement e) {
+                if (e instanceof PsiIdentifier ident
+                        && scope.stream().anyMatch((var) -> var.identifier().equals(ident.getText())))
+                    return getAliasID(ident.getText());
+                return -1;
+            }
+
+            int getAliasID(String ident) {
+                for (int i = aliasMap.size() - 1; i >= 0; i--)
+                    if (aliasMap.get(i).identifier().equals(ident)) return i;
+                return -1;
+            }
+        }
+
+        private record ParamCheckResult(boolean success, String type, Set<Integer> lambdaArgs,
+                                        Set<PsiVariable> liveInDeps) {
+            static final ParamCheckResult FAILURE = new ParamCheckResult(false, null, null, null);
+        }
+
+        private static ParamCheckResult canBeParam(PsiElement e, State ms) {
+            if (e instanceof PsiPolyadicExpression polyE && polyE.getType() != null) {
+                Collection<PsiIdentifier> idents = PsiTreeUtil.findChildrenOfType(polyE, PsiIdentifier.class);
+                if (idents.stream().map(ms::getAliasID).allMatch(id -> id == -1)) {
+                    Set<PsiVariable> liveInDeps = idents.stream().map(TypeTwoCP::variableFromIdent)
+                            .collect(Collectors.toSet());
+                    for (PsiVariable var : liveInDeps)
+                        if (var == null) return ParamCheckResult.FAILURE;
+                    return new ParamCheckResult(true, polyE.getType().getPresentableText(), new HashSet<>(), liveInDeps);
+                }
+                if (idents.stream().map(ms::getAliasID).anyMatch(id -> id == -1))
+                    return ParamCheckResult.FAILURE;
+                return new ParamCheckResult(true, polyE.getType().getPresentableText(),
+                        idents.stream().map(ms::getAliasID).collect(Collectors.toSet()), new HashSet<>());
+            } else if (e instanceof PsiLiteralExpression litExp && litExp.getType() != null) {
+                return new ParamCheckResult(true, litExp.getType().getPresentableText(), new HashSet<>(), new HashSet<>());
+            } else if (e instanceof PsiReferenceExpression refExp && !refExp.isQualified()
+                    && refExp.getType() != null) {
+                if (refExp.getParent() != null
+                        && (refExp.getParent().getParent() instanceof PsiExpressionStatement
+                        && refExp.getStartOffsetInParent() == 0)
+                        || refExp.getParent() instanceof PsiCallExpression) return ParamCheckResult.FAILURE;
+                String paramType = refExp.getType().getPresentableText();
+                int aliasID = ms.getAliasID(refExp.getReferenceName());
+                if (aliasID >= 0)
+                    return new ParamCheckResult(true, paramType, new HashSet<>(Set.of(aliasID)), new HashSet<>());
+                PsiVariable asVar = TypeTwoCP.variableFromRefExp(refExp);
+                if (asVar == null) return ParamCheckResult.FAILURE;
+                return new ParamCheckResult(true, paramType, new HashSet<>(), new HashSet<>(Set.of(asVar)));
+            }
+            return ParamCheckResult.FAILURE;
+        }
+
+        private static void processStatementDecls(PsiDeclarationStatement stmt, State ms) {
+            for (PsiElement decl : stmt.getDeclaredElements()) {
+                if (!(decl instanceof PsiLocalVariable localVar)) continue;
+                ms.aliasMap().add(new Variable(localVar.getName(), localVar.getType().getPresentableText()));
+                ms.scope().add(new Variable(localVar.getName(), localVar.getTypeElement().getText()));
+            }
+        }
+
+        private static void updateScope(PsiElement anElement, State currentState, State childrenState) {
+            if (anElement instanceof PsiDeclarationStatement stmt) {
+                processStatementDecls(stmt, currentState);
+                processStatementDecls(stmt, childrenState);
+            } else if (anElement instanceof PsiForStatement forStmt) {
+                PsiStatement stmt = forStmt.getInitialization();
+                if (stmt != null)
+                    processStatementDecls((PsiDeclarationStatement) stmt, childrenState);
+            }
+        }
+
+        static boolean matchStack(PsiElement a, PsiElement b, State ma, State mb) {
+            if (a == null || b == null) return false;
+            ParamCheckResult canBeParamA = canBeParam(a, ma);
+            ParamCheckResult canBeParamB = canBeParam(b, mb);
+            if (canBeParamA.success() && canBeParamB.success()
+                    && canBeParamA.liveInDeps().size() == canBeParamB.liveInDeps().size()) {
+                ma.parameters().add(new Parameter(a, canBeParamA.type(), canBeParamA.lambdaArgs(), canBeParamA.liveInDeps()));
+                mb.parameters().add(new Parameter(b, canBeParamB.type(), canBeParamB.lambdaArgs(), canBeParamB.liveInDeps()));
+                return true;
+            }
+            List<PsiElement> childrenA = CloneProcessor.viableChildren(a);
+            List<PsiElement> childrenB = CloneProcessor.viableChildren(b);
+            if (childrenA.size() != childrenB.size()) return false;
+            if (childrenA.isEmpty()) {
+                int idA = ma.getAliasID(a);
+                int idB = mb.getAliasID(b);
+                return a.textMatches(b) || (idA == idB && idA >= 0);
+            }
+            State childMa = ma.extend();
+            State childMb = mb.extend();
+            updateScope(a, ma, childMa);
+            updateScope(b, mb, childMb);
+            if (a instanceof PsiTypeElement typeA && b instanceof PsiTypeElement typeB) {
+                ma.typeParams().add(typeA);
+                mb.typeParams().add(typeB);
+                return true;
+            }
+            for (int i = 0; i < childrenA.size(); i++) {
+                if (!matchStack(childrenA.get(i), childrenB.get(i), childMa, childMb))
+                    return false;
+            }
+            return true;
+        }
+    }
+}
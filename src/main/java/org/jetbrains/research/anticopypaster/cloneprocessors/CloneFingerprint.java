@@ -0,0 +1,90 @@
+package org.jetbrains.research.anticopypaster.cloneprocessors;
+
+import com.intellij.psi.*;
+
+import java.util.List;
+
+/**
+ * Hashes of statement subtrees used to narrow down clone candidates before
+ * the tree matchers run. Whitespace and comments never contribute, mirroring
+ * {@link CloneProcessor#viableChildren}, so two statements the matchers
+ * consider equal always share a fingerprint of the corresponding kind.
+ */
+public enum CloneFingerprint {
+    /**
+     * Exact structure and leaf text, as compared by {@link TypeOneCP}.
+     */
+    TYPE_ONE,
+    /**
+     * Structure only, as compared by {@link TypeTwoCP}: identifiers become a
+     * placeholder, and so do whole literals, polyadic and unqualified reference
+     * expressions since any of those may be extracted as a parameter.
+     */
+    TYPE_TWO;
+
+    private static final int IDENTIFIER = 0x49444e54;
+    private static final int PARAMETER = 0x50415241;
+    private static final int TYPE = 0x54595045;
+
+    /**
+     * Computes the fingerprint of a single element.
+     * @param element Element to fingerprint
+     * @return The fingerprint
+     */
+    public int of(PsiElement element) {
+        return hash(element, null, null);
+    }
+
+    /**
+     * Fingerprints every statement below the given root in a single pass.
+     * @param root Element to traverse, usually a file or a method
+     * @param statements Receives each statement, in document order
+     * @param hashes Receives the fingerprint of each statement, at the same position
+     */
+    public void collect(PsiElement root, List<PsiStatement> statements, List<Integer> hashes) {
+        hash(root, statements, hashes);
+    }
+
+    /**
+     * Recursive helper that hashes an element, recording the hash of every
+     * statement it passes through if a destination is given.
+     */
+    private int hash(PsiElement element, List<PsiStatement> statements, List<Integer> hashes) {
+        // Statements are recorded in pre-order, but their hash is only known after the children.
+        int slot = -1;
+        if (statements != null && element instanceof PsiStatement stmt) {
+            slot = statements.size();
+            statements.add(stmt);
+            hashes.add(0);
+        }
+        int h = 0;
+        int count = 0;
+        for (PsiElement child : element.getChildren()) {
+            if (child instanceof PsiWhiteSpace || child instanceof PsiComment) continue;
+            h = 31 * h + hash(child, statements, hashes);
+            count++;
+        }
+        if (count == 0) {
+            h = this == TYPE_TWO && element instanceof PsiIdentifier ? IDENTIFIER : element.getText().hashCode();
+        } else if (this == TYPE_TWO && isParameterCandidate(element)) {
+            h = PARAMETER;
+        } else if (this == TYPE_TWO && element instanceof PsiTypeElement) {
+            // The matcher accepts any two type elements with the same number of children.
+            h = 31 * TYPE + count;
+        } else {
+            h = 31 * h + count;
+        }
+        if (slot >= 0) hashes.set(slot, h);
+        return h;
+    }
+
+    /**
+     * Determines if an element is of a kind that {@link TypeTwoCP#canBeParam}
+     * may turn into a parameter, regardless of its surroundings.
+     */
+    private static boolean isParameterCandidate(PsiElement element) {
+        return element instanceof PsiPolyadicExpression
+                || element instanceof PsiLiteralExpression
+                || element instanceof PsiReferenceExpression refExp && !refExp.isQualified();
+    }
+}
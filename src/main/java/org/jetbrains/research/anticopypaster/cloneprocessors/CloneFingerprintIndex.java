@@ -0,0 +1,88 @@
+package org.jetbrains.research.anticopypaster.cloneprocessors;
+
+import com.intellij.ide.highlighter.JavaFileType;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.DumbService;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
+import com.intellij.psi.PsiStatement;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.util.indexing.*;
+import com.intellij.util.io.EnumeratorIntegerDescriptor;
+import com.intellij.util.io.KeyDescriptor;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+/**
+ * Project-wide index from the {@link CloneFingerprint#TYPE_TWO} fingerprint of
+ * every statement to the files containing it. Type-2 fingerprints are coarser
+ * than Type-1 ones, so the same index serves both clone processors.
+ */
+public final class CloneFingerprintIndex extends ScalarIndexExtension<Integer> {
+    public static final ID<Integer, Void> NAME = ID.create("org.jetbrains.research.anticopypaster.cloneFingerprints");
+
+    /**
+     * Finds the files of the project that may contain a clone starting like the given statement.
+     * Falls back to only the statement's own file while indices are being built.
+     * @param project Project to search
+     * @param start First statement of the fragment
+     * @return The candidate files, starting with the statement's own file
+     */
+    public static List<PsiFile> candidateFiles(Project project, PsiStatement start) {
+        PsiFile own = start.getContainingFile();
+        List<PsiFile> result = new ArrayList<>();
+        result.add(own);
+        if (DumbService.isDumb(project)) return result;
+        Collection<VirtualFile> files = FileBasedIndex.getInstance().getContainingFiles(
+                NAME, CloneFingerprint.TYPE_TWO.of(start), GlobalSearchScope.projectScope(project));
+        PsiManager psiManager = PsiManager.getInstance(project);
+        for (VirtualFile file : files) {
+            ProgressManager.checkCanceled();
+            if (file.equals(own.getVirtualFile())) continue;
+            PsiFile psiFile = psiManager.findFile(file);
+            if (psiFile != null) result.add(psiFile);
+        }
+        return result;
+    }
+
+    @Override
+    public @NotNull ID<Integer, Void> getName() {
+        return NAME;
+    }
+
+    @Override
+    public @NotNull DataIndexer<Integer, Void, FileContent> getIndexer() {
+        return inputData -> {
+            List<PsiStatement> statements = new ArrayList<>();
+            List<Integer> hashes = new ArrayList<>();
+            CloneFingerprint.TYPE_TWO.collect(inputData.getPsiFile(), statements, hashes);
+            Map<Integer, Void> result = new HashMap<>();
+            for (Integer hash : hashes)
+                result.put(hash, null);
+            return result;
+        };
+    }
+
+    @Override
+    public @NotNull KeyDescriptor<Integer> getKeyDescriptor() {
+        return EnumeratorIntegerDescriptor.INSTANCE;
+    }
+
+    @Override
+    public int getVersion() {
+        return 1;
+    }
+
+    @Override
+    public FileBasedIndex.@NotNull InputFilter getInputFilter() {
+        return new DefaultFileTypeSpecificInputFilter(JavaFileType.INSTANCE);
+    }
+
+    @Override
+    public boolean dependsOnFileContent() {
+        return true;
+    }
+}
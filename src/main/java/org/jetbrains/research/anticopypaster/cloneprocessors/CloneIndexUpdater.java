@@ -0,0 +1,145 @@
+package org.jetbrains.research.anticopypaster.cloneprocessors;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.research.anticopypaster.utils.ChangedFilesQueue;
+
+import java.util.*;
+
+/**
+ * Keeps the {@link StatementHashIndex} of the files looked up most recently in sync
+ * with the PSI. Edits only mark the affected members as changed, and a merging
+ * queue re-fingerprints them in the background shortly after the first edit of a
+ * burst, so a paste never waits for a whole file to be rescanned. Lookups flush
+ * whatever is still pending for their file, so they never see stale buckets.
+ */
+@Service(Service.Level.PROJECT)
+public final class CloneIndexUpdater implements Disposable {
+    /**
+     * Longest time an edit waits before its members are re-fingerprinted.
+     * Edits arriving in the meantime are merged into the same update.
+     */
+    private static final int MERGING_TIME_SPAN_MS = 300;
+    /**
+     * Most files whose indices are kept at once. An index holds on to the statements
+     * of its file, so the least recently looked up files are dropped to let their trees go.
+     */
+    private static final int MAX_INDEXED_FILES = 200;
+
+    private final Map<VirtualFile, FileEntry> entries = Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<VirtualFile, FileEntry> eldest) {
+                    return size() > MAX_INDEXED_FILES;
+                }
+            });
+    private final ChangedFilesQueue queue;
+
+    public CloneIndexUpdater(Project project) {
+        queue = new ChangedFilesQueue(project, "AntiCopyPaster clone index", MERGING_TIME_SPAN_MS, this,
+                new ChangedFilesQueue.Listener() {
+                    @Override
+                    public void psiChanged(@NotNull VirtualFile file, @Nullable PsiElement parent) {
+                        changed(file, parent);
+                    }
+
+                    @Override
+                    public void fileDeleted(@NotNull VirtualFile file) {
+                        entries.keySet().removeIf(indexed -> VfsUtilCore.isAncestor(file, indexed, false));
+                    }
+
+                    @Override
+                    public void update() {
+                        flushAll();
+                    }
+                });
+    }
+
+    public static CloneIndexUpdater getInstance(Project project) {
+        return project.getService(CloneIndexUpdater.class);
+    }
+
+    /**
+     * Gets the index of a file, applying any pending edits first.
+     * @param file File to index
+     * @param fingerprint Kind of fingerprint to bucket statements by
+     * @return The up-to-date index of the file
+     */
+    StatementHashIndex index(PsiFile file, CloneFingerprint fingerprint) {
+        VirtualFile vFile = file.getVirtualFile();
+        // Files that only live in memory receive no events, so they're never kept.
+        if (vFile == null) return new StatementHashIndex(file, fingerprint);
+        FileEntry entry = entries.compute(vFile, (k, e) -> e == null || e.file != file ? new FileEntry(file) : e);
+        return entry.get(fingerprint);
+    }
+
+    /**
+     * Records an edit against the member it happened in and schedules the update.
+     */
+    private void changed(VirtualFile vFile, PsiElement parent) {
+        FileEntry entry = entries.get(vFile);
+        // Nothing to keep warm if the file was never looked up.
+        if (entry == null) return;
+        entry.markChanged(parent == null ? null : StatementHashIndex.unitOf(parent));
+        queue.scheduleUpdate();
+    }
+
+    /**
+     * Applies the pending edits of every indexed file.
+     */
+    private void flushAll() {
+        List<FileEntry> pending;
+        synchronized (entries) {
+            pending = new ArrayList<>(entries.values());
+        }
+        for (FileEntry entry : pending)
+            ApplicationManager.getApplication().runReadAction(entry::flush);
+    }
+
+    @Override
+    public void dispose() {
+        entries.clear();
+    }
+
+    /**
+     * Indices of a single file along with the edits not yet applied to them.
+     */
+    private static final class FileEntry {
+        private final PsiFile file;
+        private final Map<CloneFingerprint, StatementHashIndex> indices = new EnumMap<>(CloneFingerprint.class);
+        private final Set<PsiMember> changed = new HashSet<>();
+        private boolean stale;
+
+        FileEntry(PsiFile file) {
+            this.file = file;
+        }
+
+        /**
+         * @param unit Member that changed, or null if members may have been added or removed
+         */
+        synchronized void markChanged(PsiMember unit) {
+            if (unit != null) changed.add(unit);
+            stale = true;
+        }
+
+        synchronized StatementHashIndex get(CloneFingerprint fingerprint) {
+            flush();
+            return indices.computeIfAbsent(fingerprint, k -> new StatementHashIndex(file, k));
+        }
+
+        synchronized void flush() {
+            if (!stale || !file.isValid()) return;
+            for (StatementHashIndex index : indices.values())
+                index.update(file, changed);
+            changed.clear();
+            stale = false;
+        }
+    }
+}
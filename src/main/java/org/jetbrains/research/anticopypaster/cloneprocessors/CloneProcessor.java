@@ -46,8 +46,8 @@ public interface CloneProcessor {
         PsiElement[] decls = stmt.getDeclaredElements();
         for (PsiElement decl : decls) {
             if (!(decl instanceof PsiLocalVariable localVar)) continue;
-            ms.aliasMap().add(new Variable(localVar.getName(), localVar.getType().getPresentableText()));
-            ms.scope().add(new Variable(localVar.getName(), localVar.getTypeElement().getText()));
+            ms.addAlias(new Variable(localVar.getName(), localVar.getType().getPresentableText()));
+            ms.addToScope(new Variable(localVar.getName(), localVar.getTypeElement().getText()));
         }
     }
 
@@ -63,8 +63,8 @@ public interface CloneProcessor {
             processStatementDecls(stmt, childrenState);
         } else if (anElement instanceof PsiForeachStatement forEachStmt) {
             PsiParameter param = forEachStmt.getIterationParameter();
-            childrenState.aliasMap().add(new Variable(param.getName(), param.getType().getPresentableText()));
-            childrenState.scope().add(new Variable(param.getName(), param.getType().getPresentableText()));
+            childrenState.addAlias(new Variable(param.getName(), param.getType().getPresentableText()));
+            childrenState.addToScope(new Variable(param.getName(), param.getType().getPresentableText()));
         } else if (anElement instanceof PsiForStatement forStmt) {
             PsiStatement stmt = forStmt.getInitialization();
             if (stmt != null)
@@ -75,7 +75,7 @@ public interface CloneProcessor {
             tests.forEach((test) -> {
                 PsiPatternVariable pVar = test.getPatternVariable();
                 if (pVar != null)
-                    childrenState.scope().add(new Variable(pVar.getName(), pVar.getType().getPresentableText()));
+                    childrenState.addToScope(new Variable(pVar.getName(), pVar.getType().getPresentableText()));
             });
         } else if (anElement instanceof PsiReferenceExpression refExp && !refExp.isQualified()
                 && refExp.getType() != null) {
@@ -86,7 +86,7 @@ public interface CloneProcessor {
                     || refExp.getParent() instanceof PsiCallExpression) return;
             int aliasID = currentState.getAliasID(refExp.getReferenceName());
             if (aliasID == -1 && refExp.resolve() instanceof PsiVariable variable)
-                currentState.liveIn().add(variable);
+                currentState.addLiveIn(variable);
         }
     }
 
@@ -96,18 +96,17 @@ public interface CloneProcessor {
      * @param scope Scope to search through
      * @return If the variable is in scope
      */
-    static boolean isInScope(String varName, Stack<Variable> scope) {
-        return scope.stream().anyMatch((var) -> var.identifier().equals(varName));
+    static boolean isInScope(String varName, ScopeChain scope) {
+        return ScopeChain.contains(scope, varName);
     }
 
     /**
      * Recursive tree descent helper to find variable references in statement children.
-     * TODO Make sure redefined variables don't trigger live-out detection
      * @param curr Current element
      * @param scope Scope to consider
      * @param out Live-out variables
      */
-    private static void findLiveOut(PsiElement curr, Stack<Variable> scope, Set<String> out) {
+    private static void findLiveOut(PsiElement curr, ScopeChain scope, Set<String> out) {
         if (curr == null) return;
         if (curr instanceof PsiReferenceExpression refExp && !refExp.isQualified()) {
             if (isInScope(refExp.getReferenceName(), scope))
@@ -120,21 +119,29 @@ public interface CloneProcessor {
 
     /**
      * Determines which variables are live after a given code segment executes.
+     * Uses the {@link LivenessAnalysis} of the surrounding body, and only falls back
+     * to treating any later reference as a use when there is no control flow to analyse.
      * @param last Last element of the code segment
      * @param scope Variables declared in the code segment at the top level
      * @return The live-out variables
      */
-    static List<Variable> liveOut(PsiElement last, Stack<Variable> scope) {
-        Set<String> out = new HashSet<>();
-        while ((last = last.getNextSibling()) != null) {
-            findLiveOut(last, scope, out);
+    static List<Variable> liveOut(PsiElement last, ScopeChain scope) {
+        Set<String> out = new LinkedHashSet<>();
+        LivenessAnalysis liveness = LivenessAnalysis.around(last);
+        if (liveness != null && liveness.covers(last)) {
+            PsiResolveHelper resolveHelper = JavaPsiFacade.getInstance(last.getProject()).getResolveHelper();
+            for (Variable var : ScopeChain.toList(scope)) {
+                // The declaration the name refers to at the end of the segment, not another one sharing its name.
+                PsiVariable declaration = resolveHelper.resolveReferencedVariable(var.identifier(), last);
+                if (declaration != null && liveness.isLiveAfter(last, declaration))
+                    out.add(var.identifier());
+            }
+        } else {
+            while ((last = last.getNextSibling()) != null) {
+                findLiveOut(last, scope, out);
+            }
         }
-        return new ArrayList<>(
-            out.stream().map((name) ->
-                scope.stream().filter((var) ->
-                    var.identifier().equals(name)
-                ).findFirst().get()
-        ).toList());
+        return new ArrayList<>(out.stream().map((name) -> ScopeChain.find(scope, name)).toList());
     }
 
     /**
@@ -149,5 +156,26 @@ public interface CloneProcessor {
         return next;
     }
 
-    List<Clone> getClonesOfType(PsiFile file, PsiStatement start, PsiStatement end);
+    /**
+     * Finds the clones of a code segment in a file.
+     * @param file File to search
+     * @param start First statement of the segment
+     * @param end Last statement of the segment
+     * @return The clones, in document order
+     */
+    default List<Clone> getClonesOfType(PsiFile file, PsiStatement start, PsiStatement end) {
+        List<Clone> found = new ArrayList<>();
+        collectClonesOfType(file, start, end, found);
+        return found;
+    }
+
+    /**
+     * Finds the clones of a code segment in a file, adding them to a list as they are confirmed.
+     * If the search is cancelled, the list keeps the clones confirmed until then.
+     * @param file File to search
+     * @param start First statement of the segment
+     * @param end Last statement of the segment
+     * @param found Receives the clones
+     */
+    void collectClonesOfType(PsiFile file, PsiStatement start, PsiStatement end, List<Clone> found);
 }
@@ -0,0 +1,116 @@
+package org.jetbrains.research.anticopypaster.cloneprocessors;
+
+/**
+ * Shape of a code fragment that every clone of it must share, checked
+ * against a candidate before the tree matchers run. Each signature counts the
+ * candidates it checked and those each stage rejected, see {@link #rejected}.
+ * A signature is checked from a single thread.
+ */
+public final class CloneSignature {
+    /**
+     * Checks in the order they run, cheapest first.
+     */
+    public enum Stage {
+        /**
+         * Not enough siblings after the candidate to hold every statement of the fragment.
+         */
+        STATEMENT_COUNT,
+        /**
+         * The element types of the statements don't line up with the fragment's.
+         */
+        STATEMENT_TYPES,
+        /**
+         * Different number of nodes below the statements. Type-1 only.
+         */
+        NODE_COUNT,
+        /**
+         * Different number of tokens in the statements. Type-1 only.
+         */
+        TOKEN_LENGTH
+    }
+
+    private final int[] statementTypes;
+    private final int nodeCount;
+    private final int tokenLength;
+    private final boolean exact;
+    private int checked;
+    private final int[] rejected = new int[Stage.values().length];
+
+    /**
+     * Computes the signature of a fragment.
+     * @param tree Tree of the fragment's body
+     * @param start Position of the first statement of the fragment
+     * @param last Position of the last statement of the fragment
+     * @param exact Whether clones must be exact copies, which lets the sizes be compared too.
+     *              Type-2 clones may replace whole expressions by parameters, so their sizes differ.
+     */
+    public CloneSignature(SignificantTree tree, int start, int last, boolean exact) {
+        int count = 1;
+        for (int current = start; current != last && current >= 0; current = tree.nextSibling(current))
+            count++;
+        statementTypes = new int[count];
+        int nodes = 0;
+        int tokens = 0;
+        int current = start;
+        for (int i = 0; i < count && current >= 0; i++, current = tree.nextSibling(current)) {
+            statementTypes[i] = tree.type(current);
+            nodes += tree.subtreeSize(current);
+            tokens += tree.leafCount(current);
+        }
+        this.nodeCount = nodes;
+        this.tokenLength = tokens;
+        this.exact = exact;
+    }
+
+    /**
+     * Determines if a clone of the fragment may start at the given node.
+     * @param tree Tree of the candidate's body
+     * @param candidate Position of the candidate statement
+     * @return False if the candidate certainly isn't a clone, true if it has to be matched
+     */
+    public boolean accepts(SignificantTree tree, int candidate) {
+        checked++;
+        if (candidate < 0 || tree.followingSiblings(candidate) + 1 < statementTypes.length)
+            return reject(Stage.STATEMENT_COUNT);
+        int nodes = 0;
+        int tokens = 0;
+        int current = candidate;
+        for (int statementType : statementTypes) {
+            if (tree.type(current) != statementType) return reject(Stage.STATEMENT_TYPES);
+            nodes += tree.subtreeSize(current);
+            tokens += tree.leafCount(current);
+            current = tree.nextSibling(current);
+        }
+        if (!exact) return true;
+        if (nodes != nodeCount) return reject(Stage.NODE_COUNT);
+        if (tokens != tokenLength) return reject(Stage.TOKEN_LENGTH);
+        return true;
+    }
+
+    private boolean reject(Stage stage) {
+        rejected[stage.ordinal()]++;
+        return false;
+    }
+
+    /**
+     * @return How many candidates have been checked against this signature
+     */
+    public int checked() {
+        return checked;
+    }
+
+    /**
+     * @return How many candidates the given stage has rejected
+     */
+    public int rejected(Stage stage) {
+        return rejected[stage.ordinal()];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder("CloneSignature[checked=").append(checked);
+        for (Stage stage : Stage.values())
+            result.append(", ").append(stage).append('=').append(rejected[stage.ordinal()]);
+        return result.append(']').toString();
+    }
+}
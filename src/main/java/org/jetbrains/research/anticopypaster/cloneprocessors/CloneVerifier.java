@@ -0,0 +1,176 @@
+package org.jetbrains.research.anticopypaster.cloneprocessors;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.util.ProgressIndicatorUtils;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiStatement;
+import com.intellij.util.concurrency.AppExecutorUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Runs the tree matcher of a clone processor over its candidate statements.
+ * Large candidate lists are split into chunks verified in parallel, each in a
+ * non-blocking read action, so a write action makes a chunk restart rather than wait.
+ * Chunks run under the caller's progress indicator, so cancelling the caller, for
+ * instance when its time budget runs out, stops them between two candidates.
+ * Results are merged back in the order of the candidates, each chunk as soon as
+ * it and the chunks before it are done, so a cancelled search keeps what it found.
+ */
+final class CloneVerifier {
+    /**
+     * Candidates verified by a single task. Lists no longer than this are verified on the calling thread.
+     */
+    private static final int CHUNK_SIZE = 32;
+    private static final Logger LOG = Logger.getInstance(CloneVerifier.class);
+    private static final ExecutorService POOL = AppExecutorUtil.createBoundedApplicationPoolExecutor(
+            "AntiCopyPaster clone verification",
+            Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, 8)));
+
+    /**
+     * Matches a fragment against the nodes starting at a candidate, as
+     * {@link TypeOneCP} and {@link TypeTwoCP} do.
+     */
+    interface Matcher {
+        /**
+         * @return The position of the last member node of the clone, or -1 if there is no clone,
+         * in which case both match states are rolled back to how they were before the call
+         */
+        int isDuplicateAt(SignificantTree ta, int fragmentStart, int last, SignificantTree tb, int start,
+                          MatchState ma, MatchState mb);
+    }
+
+    /**
+     * Builds the signature candidates have to share with a fragment.
+     */
+    interface SignatureFactory {
+        CloneSignature create(SignificantTree tree, int start, int last);
+    }
+
+    private CloneVerifier() {
+    }
+
+    /**
+     * Finds the candidates that start a clone of the fragment.
+     * @param file File containing the candidates
+     * @param startStmt First statement of the fragment
+     * @param endStmt Last statement of the fragment
+     * @param candidates Statements of the file to check, in document order
+     * @param signatures Signature to pre-filter candidates with, or null to match every candidate
+     * @param matcher Tree matcher deciding if a candidate is a clone
+     * @param found Receives the clones, in the order of their candidates
+     */
+    static void verify(PsiFile file, PsiStatement startStmt, PsiStatement endStmt,
+                       List<PsiStatement> candidates, SignatureFactory signatures, Matcher matcher, List<Clone> found) {
+        SignificantTree fragmentTree = SignificantTree.forStatement(startStmt);
+        int fragmentStart = fragmentTree.indexOf(startStmt);
+        int fragmentEnd = fragmentTree.indexOf(endStmt);
+        if (fragmentStart < 0) return;
+        CloneSignature signature = signatures == null ? null : signatures.create(fragmentTree, fragmentStart, fragmentEnd);
+        // Each candidate is located in the tree of its own body.
+        SignificantTree[] trees = new SignificantTree[candidates.size()];
+        int[] positions = new int[candidates.size()];
+        int count = 0;
+        for (PsiStatement candidate : candidates) {
+            ProgressManager.checkCanceled();
+            SignificantTree tree = SignificantTree.forStatement(candidate);
+            int position = tree.indexOf(candidate);
+            if (signature == null ? position >= 0 : signature.accepts(tree, position)) {
+                trees[count] = tree;
+                positions[count++] = position;
+            }
+        }
+        if (signature != null && LOG.isDebugEnabled())
+            LOG.debug("[ACP] Pre-filtered clone candidates: " + signature);
+        Chunk whole = new Chunk(fragmentTree, fragmentStart, fragmentEnd, trees, positions, 0, count, matcher, () -> false);
+        // Other threads can't read while this one writes, and small lists aren't worth the hand-off.
+        if (count <= CHUNK_SIZE || ApplicationManager.getApplication().isWriteAccessAllowed()) {
+            whole.run(found);
+            return;
+        }
+
+        AtomicBoolean abandoned = new AtomicBoolean();
+        // Positions are only meaningful for the trees they came from, so a chunk restarted after an edit gives up.
+        PsiFile fragmentFile = startStmt.getContainingFile();
+        long fileStamp = file.getModificationStamp();
+        long fragmentStamp = fragmentFile.getModificationStamp();
+        ProgressIndicator caller = ProgressManager.getInstance().getProgressIndicator();
+        ProgressIndicator indicator = caller != null ? caller : new EmptyProgressIndicator();
+        List<Future<List<Clone>>> tasks = new ArrayList<>();
+        for (int from = 0; from < count; from += CHUNK_SIZE) {
+            Chunk chunk = new Chunk(fragmentTree, fragmentStart, fragmentEnd, trees, positions, from,
+                    Math.min(from + CHUNK_SIZE, count), matcher, abandoned::get);
+            tasks.add(POOL.submit(() -> ReadAction.nonBlocking(() -> chunk.run(new ArrayList<>()))
+                    .wrapProgress(indicator)
+                    .expireWhen(() -> abandoned.get() || file.getModificationStamp() != fileStamp
+                            || fragmentFile.getModificationStamp() != fragmentStamp)
+                    .executeSynchronously()));
+        }
+        boolean completed = false;
+        try {
+            // Waiting stays responsive to cancellation of the calling thread, so a pending
+            // write action cancels the caller's read action instead of waiting on it.
+            for (Future<List<Clone>> task : tasks)
+                found.addAll(ProgressIndicatorUtils.awaitWithCheckCanceled(task));
+            completed = true;
+        } finally {
+            // Stop the chunks still queued or waiting to restart once the caller gives up.
+            if (!completed) {
+                abandoned.set(true);
+                tasks.forEach(task -> task.cancel(false));
+            }
+        }
+    }
+
+    /**
+     * A range of the candidate positions, verified with a pair of match states of its own.
+     * The chunk stops between two candidates once cancelled or abandoned.
+     */
+    private record Chunk(SignificantTree fragmentTree, int fragmentStart, int fragmentEnd, SignificantTree[] trees,
+                         int[] positions, int from, int to, Matcher matcher, BooleanSupplier abandoned) {
+        /**
+         * @param results Receives the clones, as each one is confirmed
+         * @return The list of clones
+         */
+        List<Clone> run(List<Clone> results) {
+            MatchState ma = new MatchState();
+            MatchState mb = new MatchState();
+            for (int i = from; i < to; i++) {
+                ProgressManager.checkCanceled();
+                if (abandoned.getAsBoolean()) throw new ProcessCanceledException();
+                SignificantTree fileTree = trees[i];
+                int endIndex = matcher.isDuplicateAt(fragmentTree, fragmentStart, fragmentEnd, fileTree, positions[i], ma, mb);
+                if (endIndex >= 0) {
+                    PsiElement end = fileTree.element(endIndex);
+                    results.add(new Clone(
+                            fileTree.element(positions[i]),
+                            end,
+                            CloneProcessor.liveOut(end, mb.scope()),
+                            mb.parameters(),
+                            mb.aliasMap(),
+                            mb.typeParams(),
+                            mb.liveIn(),
+                            mb.extractable()
+                    ));
+                    // The clone keeps the collections of the states, so the next candidate needs new ones.
+                    // A failed attempt is rolled back by the matcher instead, and its states are reused.
+                    ma = new MatchState();
+                    mb = new MatchState();
+                }
+            }
+            return results;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package org.jetbrains.research.anticopypaster.cloneprocessors;
+
+import com.intellij.openapi.util.Key;
+import com.intellij.psi.*;
+import com.intellij.psi.controlFlow.*;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Backward liveness analysis of a method body over its control flow graph.
+ * Every instruction gets the set of variables whose current value may still be
+ * read afterwards, so asking whether a variable is live after some element is a
+ * lookup. A variable that is overwritten before being read again is not live.
+ * Variables are told apart by declaration, so a local shadowing a field or two
+ * sibling locals of the same name don't share liveness.
+ * The analysis is cached per body and redone when that body changes.
+ */
+public final class LivenessAnalysis {
+    private static final Key<Cached> KEY = Key.create("anticopypaster.liveness");
+
+    private final ControlFlow flow;
+    private final Map<PsiVariable, Integer> variableIndices = new HashMap<>();
+    /**
+     * Variables live before each instruction, by index in {@link #variableIndices}.
+     * The extra last entry is the exit of the body, where nothing is live.
+     */
+    private final BitSet[] liveIn;
+
+    private LivenessAnalysis(ControlFlow flow) {
+        this.flow = flow;
+        int size = flow.getSize();
+        BitSet[] uses = new BitSet[size];
+        BitSet[] defs = new BitSet[size];
+        for (int i = 0; i < size; i++) {
+            uses[i] = new BitSet();
+            defs[i] = new BitSet();
+            Instruction instruction = flow.getInstructions().get(i);
+            if (instruction instanceof ReadVariableInstruction read)
+                uses[i].set(indexOf(read.variable));
+            else if (instruction instanceof WriteVariableInstruction write)
+                defs[i].set(indexOf(write.variable));
+        }
+        liveIn = new BitSet[size + 1];
+        for (int i = 0; i <= size; i++)
+            liveIn[i] = new BitSet();
+        // Iterate to a fixed point; going backwards means loops are the only reason for another pass.
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = size - 1; i >= 0; i--) {
+                Instruction instruction = flow.getInstructions().get(i);
+                BitSet live = new BitSet();
+                for (int n = 0; n < instruction.nNext(); n++) {
+                    int next = instruction.getNext(i, n);
+                    if (next >= 0 && next <= size) live.or(liveIn[next]);
+                }
+                live.andNot(defs[i]);
+                live.or(uses[i]);
+                if (!live.equals(liveIn[i])) {
+                    liveIn[i] = live;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    private int indexOf(PsiVariable variable) {
+        return variableIndices.computeIfAbsent(variable, k -> variableIndices.size());
+    }
+
+    /**
+     * Gets the analysis of the body around the given element.
+     * @param element Element inside a method, lambda or initializer body
+     * @return The analysis, or null if the element isn't in such a body or its control flow can't be built
+     */
+    public static LivenessAnalysis around(PsiElement element) {
+        PsiCodeBlock body = enclosingBody(element);
+        if (body == null) return null;
+        long stamp = SignificantTree.stampOf(body);
+        Cached cached = body.getUserData(KEY);
+        if (cached == null || cached.stamp() != stamp) {
+            LivenessAnalysis analysis;
+            try {
+                analysis = new LivenessAnalysis(ControlFlowFactory.getInstance(body.getProject())
+                        .getControlFlow(body, LocalsOrMyInstanceFieldsControlFlowPolicy.getInstance()));
+            } catch (AnalysisCanceledException e) {
+                analysis = null;
+            }
+            // Concurrent lookups may both analyse the body, and either one is kept.
+            cached = new Cached(stamp, analysis);
+            body.putUserData(KEY, cached);
+        }
+        return cached.analysis();
+    }
+
+    /**
+     * Analysis of a body, or null if its control flow couldn't be built, with the modification count it was done at.
+     */
+    private record Cached(long stamp, LivenessAnalysis analysis) {}
+
+    /**
+     * Finds the body of the innermost method, lambda or initializer containing an element.
+     */
+    private static PsiCodeBlock enclosingBody(PsiElement element) {
+        for (PsiElement current = element; current != null && !(current instanceof PsiFile); current = current.getParent()) {
+            if (current instanceof PsiCodeBlock block && (block.getParent() instanceof PsiMethod
+                    || block.getParent() instanceof PsiLambdaExpression
+                    || block.getParent() instanceof PsiClassInitializer))
+                return block;
+        }
+        return null;
+    }
+
+    /**
+     * Determines if a variable may be read after an element executes, before being assigned again.
+     * @param element Element of the analysed body
+     * @param variable Declaration of the variable
+     * @return Whether the variable is live after the element
+     */
+    public boolean isLiveAfter(PsiElement element, PsiVariable variable) {
+        Integer index = variableIndices.get(variable);
+        if (index == null) return false;
+        int offset = flow.getEndOffset(element);
+        if (offset < 0 || offset >= liveIn.length) return false;
+        return liveIn[offset].get(index);
+    }
+
+    /**
+     * Determines if the analysis covers the given element.
+     */
+    public boolean covers(PsiElement element) {
+        return flow.getEndOffset(element) >= 0;
+    }
+}
@@ -5,32 +5,55 @@ import com.intellij.psi.*;
 
 import java.util.*;
 
+/**
+ * State of one side of a tree match. The scope is a {@link ScopeChain}, so
+ * {@link #extend()} shares it instead of copying it, and every other collection
+ * is shared by the whole match. Alias IDs are looked up through a hash map.
+ * The matchers {@link #mark} the state before trying a candidate and
+ * {@link #rollback} what a failed attempt added, so a state can be reused for the next one.
+ */
 public final class MatchState {
-    private final Stack<Variable> scope;
+    private ScopeChain scope;
     private final Set<PsiVariable> liveIn;
+    /**
+     * Variables in the order they were added to {@link #liveIn}, to remove them again on rollback.
+     */
+    private final List<PsiVariable> liveInOrder;
     private final List<Parameter> parameters;
     private final List<Variable> aliasMap;
+    private final Map<String, Integer> aliasIDs;
+    /**
+     * Previous alias ID of the identifier of each {@link #aliasMap} entry, or -1 if it had none.
+     */
+    private final IntStack shadowedAliasIDs;
     private final List<PsiTypeElement> typeParams;
     private Boolean extractable;
 
-    public MatchState(Stack<Variable> scope, Set<PsiVariable> liveIn, List<Parameter> parameters,
-                      List<Variable> aliasMap, List<PsiTypeElement> typeParams, boolean extractable) {
+    private MatchState(ScopeChain scope, Set<PsiVariable> liveIn, List<PsiVariable> liveInOrder,
+                       List<Parameter> parameters, List<Variable> aliasMap, Map<String, Integer> aliasIDs,
+                       IntStack shadowedAliasIDs, List<PsiTypeElement> typeParams, boolean extractable) {
         this.scope = scope;
         this.liveIn = liveIn;
+        this.liveInOrder = liveInOrder;
         this.parameters = parameters;
         this.aliasMap = aliasMap;
+        this.aliasIDs = aliasIDs;
+        this.shadowedAliasIDs = shadowedAliasIDs;
         this.typeParams = typeParams;
         this.extractable = extractable;
     }
 
     public MatchState() {
-        this(new Stack<>(), new HashSet<>(), new ArrayList<>(), new ArrayList<>(), new ArrayList<>(), true);
+        this(null, new HashSet<>(), new ArrayList<>(), new ArrayList<>(), new ArrayList<>(), new HashMap<>(),
+                new IntStack(), new ArrayList<>(), true);
     }
 
+    /**
+     * Creates the state for the next block level, which starts with the current scope.
+     */
     public MatchState extend() {
-        Stack<Variable> newStack = new Stack<>();
-        newStack.addAll(scope);
-        return new MatchState(newStack, liveIn, parameters, aliasMap, typeParams, extractable);
+        return new MatchState(scope, liveIn, liveInOrder, parameters, aliasMap, aliasIDs, shadowedAliasIDs, typeParams,
+                extractable);
     }
 
     public void addParameter(PsiElement extractedValue, String type, Set<Integer> lambdaArgs, Set<PsiVariable> liveInDeps) {
@@ -42,6 +65,56 @@ public final class MatchState {
         ));
     }
 
+    /**
+     * Records a variable the match reads from outside of it.
+     */
+    public void addLiveIn(PsiVariable variable) {
+        if (liveIn.add(variable)) liveInOrder.add(variable);
+    }
+
+    /**
+     * Brings a variable into the scope of this state and of the states extended from it from now on.
+     */
+    public void addToScope(Variable variable) {
+        scope = ScopeChain.push(scope, variable);
+    }
+
+    /**
+     * Registers a declared variable under the next alias ID.
+     */
+    public void addAlias(Variable variable) {
+        Integer previous = aliasIDs.put(variable.identifier(), aliasMap.size());
+        shadowedAliasIDs.push(previous == null ? -1 : previous);
+        aliasMap.add(variable);
+    }
+
+    /**
+     * Gets a marker for the current state, to {@link #rollback} to later.
+     */
+    public Mark mark() {
+        return new Mark(scope, aliasMap.size(), liveInOrder.size(), parameters.size(), typeParams.size(), extractable);
+    }
+
+    /**
+     * Undoes everything added to the state since the given mark: aliases, live-in
+     * variables, parameters and type parameters, as well as the scope of this state.
+     * @param mark Value of {@link #mark()} to return to
+     */
+    public void rollback(Mark mark) {
+        for (int i = aliasMap.size() - 1; i >= mark.aliases(); i--) {
+            String identifier = aliasMap.remove(i).identifier();
+            int previous = shadowedAliasIDs.pop();
+            if (previous < 0) aliasIDs.remove(identifier);
+            else aliasIDs.put(identifier, previous);
+        }
+        for (int i = liveInOrder.size() - 1; i >= mark.liveIn(); i--)
+            liveIn.remove(liveInOrder.remove(i));
+        parameters.subList(mark.parameters(), parameters.size()).clear();
+        typeParams.subList(mark.typeParams(), typeParams.size()).clear();
+        scope = mark.scope();
+        extractable = mark.extractable();
+    }
+
     /**
      * If the given element can be aliased, look up its alias ID.
      *
@@ -50,21 +123,20 @@ public final class MatchState {
      */
     public int getAliasID(PsiElement e) {
         if (e instanceof PsiIdentifier ident &&
-                CloneProcessor.isInScope(ident.getText(), scope)) {
+                ScopeChain.contains(scope, ident.getText())) {
             return getAliasID(ident.getText());
         }
         return -1;
     }
 
     public int getAliasID(String ident) {
-        for (int i = aliasMap.size() - 1; i >= 0; i--)
-            if (aliasMap.get(i).identifier().equals(ident)) return i;
-        return -1;
+        Integer id = aliasIDs.get(ident);
+        return id == null ? -1 : id;
     }
 
     public String toString() {
         return "MatchState[\n\tscope="
-                + scope.toString()
+                + ScopeChain.toList(scope)
                 + "\n\tliveIn="
                 + liveIn.toString()
                 + "\n\taliasMap="
@@ -77,7 +149,7 @@ public final class MatchState {
     }
 
 
-    public Stack<Variable> scope() {
+    public ScopeChain scope() {
         return scope;
     }
 
@@ -123,4 +195,26 @@ public final class MatchState {
         return Objects.hash(scope, liveIn, parameters, aliasMap, typeParams, extractable);
     }
 
+    /**
+     * Sizes of the collections of a state and its scope at some point of a match.
+     */
+    public record Mark(ScopeChain scope, int aliases, int liveIn, int parameters, int typeParams,
+                       boolean extractable) {}
+
+    /**
+     * Growable stack of primitive ints, to keep the undo log free of boxing.
+     */
+    private static final class IntStack {
+        private int[] values = new int[16];
+        private int size;
+
+        void push(int value) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        int pop() {
+            return values[--size];
+        }
+    }
 }
@@ -0,0 +1,56 @@
+package org.jetbrains.research.anticopypaster.cloneprocessors;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Immutable linked list of the variables in scope, innermost first. Declaring
+ * a variable creates a new head that shares the rest of the chain, so entering
+ * a nested block never copies the enclosing scope.
+ * The empty scope is represented by {@code null}.
+ */
+public record ScopeChain(Variable variable, ScopeChain parent) {
+    /**
+     * Adds a variable in front of the given chain.
+     * @param chain Chain to extend, or null for the empty scope
+     * @param variable Variable entering scope
+     * @return The extended chain
+     */
+    public static ScopeChain push(ScopeChain chain, Variable variable) {
+        return new ScopeChain(variable, chain);
+    }
+
+    /**
+     * Finds the innermost variable with the given name.
+     * @param chain Chain to search, or null for the empty scope
+     * @param identifier Name of the variable
+     * @return The variable, or null if it isn't in scope
+     */
+    public static Variable find(ScopeChain chain, String identifier) {
+        for (ScopeChain link = chain; link != null; link = link.parent)
+            if (link.variable.identifier().equals(identifier)) return link.variable;
+        return null;
+    }
+
+    /**
+     * Determines if a variable is present in the given chain by name.
+     */
+    public static boolean contains(ScopeChain chain, String identifier) {
+        return find(chain, identifier) != null;
+    }
+
+    /**
+     * Lists the variables of a chain, outermost first.
+     */
+    public static List<Variable> toList(ScopeChain chain) {
+        List<Variable> result = new ArrayList<>();
+        for (ScopeChain link = chain; link != null; link = link.parent)
+            result.add(0, link.variable);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return toList(this).toString();
+    }
+}
@@ -0,0 +1,191 @@
+package org.jetbrains.research.anticopypaster.cloneprocessors;
+
+import com.intellij.lang.ASTNode;
+import com.intellij.openapi.util.Key;
+import com.intellij.psi.*;
+import com.intellij.psi.impl.source.tree.CompositeElement;
+import com.intellij.psi.util.PsiTreeUtil;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Flattened pre-order copy of the PSI tree of a body, holding only the children
+ * {@link CloneProcessor#viableChildren} would return, so the clone processors
+ * can walk it by index instead of filtering children at every node.
+ * Nodes are identified by their position; the first child of a node with
+ * children is always the next position. A body is the outermost code block of
+ * a member, and its tree is rebuilt only when that block changes, so editing
+ * one method leaves the trees of the others in place.
+ */
+public final class SignificantTree {
+    private static final Key<SignificantTree> KEY = Key.create("anticopypaster.significantTree");
+
+    /**
+     * Modification count of the body when the tree was built.
+     */
+    private final long stamp;
+
+    private int size;
+    private int[] types;
+    private int[] childCounts;
+    private int[] nextSiblings;
+    private int[] followingSiblings;
+    private int[] subtreeSizes;
+    private int[] leafCounts;
+    private int[] textHashes;
+    private PsiElement[] elements;
+    private final Map<PsiStatement, Integer> statements = new HashMap<>();
+
+    private SignificantTree(PsiElement body, long stamp) {
+        this.stamp = stamp;
+        int capacity = Math.max(16, body.getTextLength() / 4);
+        types = new int[capacity];
+        childCounts = new int[capacity];
+        nextSiblings = new int[capacity];
+        followingSiblings = new int[capacity];
+        subtreeSizes = new int[capacity];
+        leafCounts = new int[capacity];
+        textHashes = new int[capacity];
+        elements = new PsiElement[capacity];
+        add(body);
+    }
+
+    /**
+     * Gets the tree of the body containing the given statement,
+     * building it if the body changed since the last lookup.
+     * @param statement Statement whose body to mirror
+     * @return The up-to-date tree of the body
+     */
+    public static SignificantTree forStatement(PsiStatement statement) {
+        PsiElement body = PsiTreeUtil.getTopmostParentOfType(statement, PsiCodeBlock.class);
+        if (body == null) body = statement;
+        long stamp = stampOf(body);
+        SignificantTree tree = body.getUserData(KEY);
+        if (tree == null || tree.stamp != stamp) {
+            // Concurrent lookups may both build the tree, and either one is kept.
+            tree = new SignificantTree(body, stamp);
+            body.putUserData(KEY, tree);
+        }
+        return tree;
+    }
+
+    /**
+     * Gets a number that changes whenever anything inside the body does.
+     */
+    static long stampOf(PsiElement body) {
+        if (body.getNode() instanceof CompositeElement node) return node.getModificationCount();
+        return body.getContainingFile().getModificationStamp();
+    }
+
+    /**
+     * Appends an element and its subtree in pre-order.
+     * @return The position of the element
+     */
+    private int add(PsiElement element) {
+        if (size == types.length) grow();
+        int index = size++;
+        ASTNode node = element.getNode();
+        elements[index] = element;
+        types[index] = node == null ? -1 : node.getElementType().getIndex();
+        nextSiblings[index] = -1;
+        if (element instanceof PsiStatement stmt) statements.put(stmt, index);
+        followingSiblings[index] = 0;
+        int count = 0;
+        int leaves = 0;
+        int previous = -1;
+        for (PsiElement child : element.getChildren()) {
+            if (child instanceof PsiWhiteSpace || child instanceof PsiComment) continue;
+            int childIndex = add(child);
+            if (previous >= 0) nextSiblings[previous] = childIndex;
+            previous = childIndex;
+            leaves += leafCounts[childIndex];
+            count++;
+        }
+        for (int child = index + 1, following = count - 1; following >= 0; child = nextSiblings[child], following--)
+            followingSiblings[child] = following;
+        childCounts[index] = count;
+        subtreeSizes[index] = size - index;
+        leafCounts[index] = count == 0 ? 1 : leaves;
+        textHashes[index] = count == 0 ? element.getText().hashCode() : 0;
+        return index;
+    }
+
+    private void grow() {
+        int capacity = types.length * 2;
+        types = Arrays.copyOf(types, capacity);
+        childCounts = Arrays.copyOf(childCounts, capacity);
+        nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+        followingSiblings = Arrays.copyOf(followingSiblings, capacity);
+        subtreeSizes = Arrays.copyOf(subtreeSizes, capacity);
+        leafCounts = Arrays.copyOf(leafCounts, capacity);
+        textHashes = Arrays.copyOf(textHashes, capacity);
+        elements = Arrays.copyOf(elements, capacity);
+    }
+
+    /**
+     * Finds the position of a statement of the body.
+     * @return The position, or -1 if the statement isn't part of this tree
+     */
+    public int indexOf(PsiStatement statement) {
+        return statements.getOrDefault(statement, -1);
+    }
+
+    public PsiElement element(int index) {
+        return elements[index];
+    }
+
+    /**
+     * @return The index of the node's element type, or -1 if it has no AST node
+     */
+    public int type(int index) {
+        return types[index];
+    }
+
+    public int childCount(int index) {
+        return childCounts[index];
+    }
+
+    /**
+     * @return The position of the node's first child, or -1 if it has none
+     */
+    public int firstChild(int index) {
+        return childCounts[index] > 0 ? index + 1 : -1;
+    }
+
+    /**
+     * @return The position of the node's next sibling, or -1 if it is the last child
+     */
+    public int nextSibling(int index) {
+        return nextSiblings[index];
+    }
+
+    /**
+     * @return The number of siblings after the node
+     */
+    public int followingSiblings(int index) {
+        return followingSiblings[index];
+    }
+
+    /**
+     * @return The number of nodes in the subtree of the node, itself included
+     */
+    public int subtreeSize(int index) {
+        return subtreeSizes[index];
+    }
+
+    /**
+     * @return The number of leaves, in other words tokens, in the subtree of the node
+     */
+    public int leafCount(int index) {
+        return leafCounts[index];
+    }
+
+    /**
+     * @return The hash of the text of a leaf, or 0 for a node with children
+     */
+    public int textHash(int index) {
+        return textHashes[index];
+    }
+}
@@ -0,0 +1,111 @@
+package org.jetbrains.research.anticopypaster.cloneprocessors;
+
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.psi.*;
+
+import java.util.*;
+
+/**
+ * Per-file index from the fingerprint of a statement to every statement in
+ * the file sharing that fingerprint. Clones always land in the same bucket,
+ * so only the statements in that bucket need a full tree comparison.
+ * Buckets are kept separately for each top-level member of the file, so that
+ * {@link CloneIndexUpdater} only has to re-fingerprint the members that changed.
+ */
+public final class StatementHashIndex {
+    private final CloneFingerprint fingerprint;
+    private volatile Map<PsiMember, Map<Integer, List<PsiStatement>>> units = Map.of();
+
+    StatementHashIndex(PsiFile file, CloneFingerprint fingerprint) {
+        this.fingerprint = fingerprint;
+        update(file, Set.of());
+    }
+
+    /**
+     * Gets the index for the given file, bringing it up to date with any pending edits first.
+     * @param file File to index
+     * @param fingerprint Kind of fingerprint to bucket statements by
+     * @return The up-to-date index of the file
+     */
+    public static StatementHashIndex forFile(PsiFile file, CloneFingerprint fingerprint) {
+        return CloneIndexUpdater.getInstance(file.getProject()).index(file, fingerprint);
+    }
+
+    /**
+     * Finds the statements of the indexed file that may be clones of the given statement.
+     * @param statement Statement to look up, possibly from another file
+     * @return Candidate statements in document order
+     */
+    public List<PsiStatement> candidates(PsiStatement statement) {
+        int hash = fingerprint.of(statement);
+        List<PsiStatement> result = new ArrayList<>();
+        for (Map<Integer, List<PsiStatement>> buckets : units.values())
+            result.addAll(buckets.getOrDefault(hash, Collections.emptyList()));
+        result.sort(Comparator.comparingInt(PsiElement::getTextOffset));
+        return result;
+    }
+
+    /**
+     * Re-fingerprints the given members and any member the index doesn't know yet,
+     * and drops the members that no longer exist. Every other member keeps its buckets.
+     * @param file File the index belongs to
+     * @param changed Members whose contents changed since the last update
+     */
+    void update(PsiFile file, Set<PsiMember> changed) {
+        Map<PsiMember, Map<Integer, List<PsiStatement>>> previous = units;
+        Map<PsiMember, Map<Integer, List<PsiStatement>>> updated = new HashMap<>();
+        for (PsiMember unit : unitsOf(file)) {
+            ProgressManager.checkCanceled();
+            Map<Integer, List<PsiStatement>> buckets = changed.contains(unit) ? null : previous.get(unit);
+            updated.put(unit, buckets != null ? buckets : bucketsOf(unit));
+        }
+        units = updated;
+    }
+
+    /**
+     * Fingerprints every statement of a member.
+     */
+    private Map<Integer, List<PsiStatement>> bucketsOf(PsiMember unit) {
+        List<PsiStatement> statements = new ArrayList<>();
+        List<Integer> hashes = new ArrayList<>();
+        fingerprint.collect(unit, statements, hashes);
+        Map<Integer, List<PsiStatement>> buckets = new HashMap<>();
+        for (int i = 0; i < statements.size(); i++)
+            buckets.computeIfAbsent(hashes.get(i), k -> new ArrayList<>()).add(statements.get(i));
+        return buckets;
+    }
+
+    /**
+     * Lists the members a file is divided into for indexing: the methods,
+     * initializers and fields of its classes, including nested ones.
+     * Local and anonymous classes belong to the member they appear in.
+     */
+    static List<PsiMember> unitsOf(PsiFile file) {
+        List<PsiMember> result = new ArrayList<>();
+        if (file instanceof PsiClassOwner owner)
+            for (PsiClass psiClass : owner.getClasses())
+                addUnits(psiClass, result);
+        return result;
+    }
+
+    private static void addUnits(PsiClass psiClass, List<PsiMember> result) {
+        result.addAll(Arrays.asList(psiClass.getMethods()));
+        result.addAll(Arrays.asList(psiClass.getInitializers()));
+        result.addAll(Arrays.asList(psiClass.getFields()));
+        for (PsiClass inner : psiClass.getInnerClasses())
+            addUnits(inner, result);
+    }
+
+    /**
+     * Finds the member of {@link #unitsOf} that contains the given element.
+     * @param element Element to look up
+     * @return The outermost method, initializer or field around the element, or null if there is none
+     */
+    static PsiMember unitOf(PsiElement element) {
+        PsiMember unit = null;
+        for (PsiElement current = element; current != null && !(current instanceof PsiFile); current = current.getParent())
+            if (current instanceof PsiMethod || current instanceof PsiClassInitializer || current instanceof PsiField)
+                unit = (PsiMember) current;
+        return unit;
+    }
+}
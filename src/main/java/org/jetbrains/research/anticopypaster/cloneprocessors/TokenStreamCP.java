@@ -0,0 +1,108 @@
+package org.jetbrains.research.anticopypaster.cloneprocessors;
+
+import com.intellij.lang.java.JavaParserDefinition;
+import com.intellij.lexer.Lexer;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.util.Key;
+import com.intellij.psi.*;
+import com.intellij.psi.impl.source.tree.ElementType;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.psi.tree.TokenSet;
+import com.intellij.psi.util.CachedValue;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
+import com.intellij.psi.util.PsiTreeUtil;
+
+import java.util.*;
+
+/**
+ * Finds clones by searching the token stream of the file instead of comparing
+ * PSI trees. Identifiers, literals and primitive types are all lexed to one
+ * shared id, since a Type-2 clone may differ in any of them, so every renamed
+ * clone of the fragment is an exact repeat of its token ids and is found with
+ * one suffix array lookup. Only those repeats go through {@link TypeTwoCP},
+ * which confirms them on the PSI at the offsets the tokens were lexed from,
+ * so their parameters are worked out from the original identifiers.
+ */
+public class TokenStreamCP implements CloneProcessor {
+    private static final Key<CachedValue<LexedFile>> KEY = Key.create("anticopypaster.tokenStream");
+    private static final TokenSet OPERANDS = TokenSet.orSet(TokenSet.create(
+            JavaTokenType.IDENTIFIER, JavaTokenType.INTEGER_LITERAL, JavaTokenType.LONG_LITERAL,
+            JavaTokenType.FLOAT_LITERAL, JavaTokenType.DOUBLE_LITERAL, JavaTokenType.CHARACTER_LITERAL,
+            JavaTokenType.STRING_LITERAL, JavaTokenType.TEXT_BLOCK_LITERAL, JavaTokenType.TRUE_KEYWORD,
+            JavaTokenType.FALSE_KEYWORD, JavaTokenType.NULL_KEYWORD
+    ), ElementType.PRIMITIVE_TYPE_BIT_SET);
+
+    private final TypeTwoCP confirmer = new TypeTwoCP();
+
+    /**
+     * Token ids of a range of a file along with where each token starts.
+     */
+    private record LexedFile(int[] tokens, int[] offsets, TokenSuffixArray index) {}
+
+    /**
+     * Lexes a range of a file, skipping whitespace and comments.
+     * @param file File to lex
+     * @param start Offset of the first character to lex
+     * @param end Offset after the last character to lex
+     * @param indexed Whether to build the suffix array of the tokens
+     * @return The token ids and their start offsets
+     */
+    private static LexedFile lex(PsiFile file, int start, int end, boolean indexed) {
+        Lexer lexer = JavaParserDefinition.createLexer(com.intellij.psi.util.PsiUtil.getLanguageLevel(file));
+        lexer.start(file.getViewProvider().getContents(), start, end);
+        int[] tokens = new int[64];
+        int[] offsets = new int[64];
+        int count = 0;
+        for (IElementType type; (type = lexer.getTokenType()) != null; lexer.advance()) {
+            ProgressManager.checkCanceled();
+            if (ElementType.JAVA_COMMENT_OR_WHITESPACE_BIT_SET.contains(type)) continue;
+            if (count == tokens.length) {
+                tokens = Arrays.copyOf(tokens, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            tokens[count] = tokenId(type);
+            offsets[count] = lexer.getTokenStart();
+            count++;
+        }
+        tokens = Arrays.copyOf(tokens, count);
+        offsets = Arrays.copyOf(offsets, count);
+        return new LexedFile(tokens, offsets, indexed ? new TokenSuffixArray(tokens) : null);
+    }
+
+    /**
+     * Maps a token type to its id, merging identifiers, literals and primitive types into one.
+     */
+    private static int tokenId(IElementType type) {
+        if (OPERANDS.contains(type)) return JavaTokenType.IDENTIFIER.getIndex();
+        return type.getIndex();
+    }
+
+    /**
+     * Finds the outermost statement starting exactly at the given offset.
+     */
+    private static PsiStatement statementAt(PsiFile file, int offset) {
+        PsiStatement result = null;
+        PsiStatement current = PsiTreeUtil.getParentOfType(file.findElementAt(offset), PsiStatement.class, false);
+        while (current != null && current.getTextRange().getStartOffset() == offset) {
+            result = current;
+            current = PsiTreeUtil.getParentOfType(current, PsiStatement.class, true);
+        }
+        return result;
+    }
+
+    @Override
+    public void collectClonesOfType(PsiFile file, PsiStatement startStmt, PsiStatement endStmt, List<Clone> found) {
+        LexedFile lexed = CachedValuesManager.getCachedValue(file, KEY, () -> CachedValueProvider.Result.create(
+                lex(file, 0, file.getTextLength(), true), file));
+        LexedFile fragment = lex(startStmt.getContainingFile(), startStmt.getTextRange().getStartOffset(),
+                endStmt.getTextRange().getEndOffset(), false);
+        List<PsiStatement> matches = new ArrayList<>();
+        for (int position : lexed.index().occurrences(fragment.tokens())) {
+            PsiStatement match = statementAt(file, lexed.offsets()[position]);
+            if (match != null) matches.add(match);
+        }
+        // Equal token sequences already imply the shape a signature would check.
+        CloneVerifier.verify(file, startStmt, endStmt, matches, null, confirmer::isDuplicateAt, found);
+    }
+}
@@ -0,0 +1,132 @@
+package org.jetbrains.research.anticopypaster.cloneprocessors;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Suffix array and LCP array of a stream of token ids, used to find every
+ * occurrence of a token sequence in O(m log n + occurrences) time.
+ * Construction is O(n log n) by prefix doubling with radix sort.
+ */
+public final class TokenSuffixArray {
+    private final int[] tokens;
+    private final int[] suffixes;
+    private final int[] lcp;
+
+    public TokenSuffixArray(int[] tokens) {
+        this.tokens = tokens;
+        this.suffixes = buildSuffixes(tokens);
+        this.lcp = buildLcp(tokens, suffixes);
+    }
+
+    /**
+     * Finds every position at which the given sequence occurs.
+     * @param pattern Token ids to search for
+     * @return Start positions of the occurrences, in increasing order
+     */
+    public List<Integer> occurrences(int[] pattern) {
+        List<Integer> result = new ArrayList<>();
+        if (pattern.length == 0 || suffixes.length == 0) return result;
+        // Lower bound of the suffixes starting with the pattern.
+        int lo = 0;
+        int hi = suffixes.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(suffixes[mid], pattern) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+        if (lo == suffixes.length || compare(suffixes[lo], pattern) != 0) return result;
+        // All other matches follow directly and share at least the pattern's length with their predecessor.
+        result.add(suffixes[lo]);
+        for (int i = lo + 1; i < suffixes.length && lcp[i] >= pattern.length; i++)
+            result.add(suffixes[i]);
+        result.sort(null);
+        return result;
+    }
+
+    /**
+     * Compares the suffix at the given position with a pattern, considering at most the pattern's length.
+     * @return Negative, zero or positive as the suffix sorts before, starts with or sorts after the pattern
+     */
+    private int compare(int suffix, int[] pattern) {
+        for (int i = 0; i < pattern.length; i++) {
+            if (suffix + i == tokens.length) return -1;
+            int cmp = Integer.compare(tokens[suffix + i], pattern[i]);
+            if (cmp != 0) return cmp;
+        }
+        return 0;
+    }
+
+    /**
+     * Sorts the suffixes of the token stream by prefix doubling. Every round
+     * radix sorts the suffixes by the pair of ranks of their first k and next k tokens.
+     */
+    static int[] buildSuffixes(int[] tokens) {
+        int n = tokens.length;
+        int[] suffixes = new int[n];
+        if (n == 0) return suffixes;
+        int[] rank = new int[n];
+        int[] next = new int[n];
+        int[] bySecond = new int[n];
+        // Initial ranks are the token ids compressed to 0..classes-1.
+        int[] alphabet = Arrays.stream(tokens).distinct().sorted().toArray();
+        for (int i = 0; i < n; i++)
+            rank[i] = Arrays.binarySearch(alphabet, tokens[i]);
+        int classes = alphabet.length;
+        int[] count = new int[Math.max(classes, n)];
+        for (int i = 0; i < n; i++) count[rank[i]]++;
+        for (int i = 1; i < classes; i++) count[i] += count[i - 1];
+        for (int i = n - 1; i >= 0; i--) suffixes[--count[rank[i]]] = i;
+
+        for (int k = 1; classes < n; k <<= 1) {
+            // Suffixes without a second half sort first, then the rest in the order of their second half.
+            int p = 0;
+            for (int i = Math.max(0, n - k); i < n; i++) bySecond[p++] = i;
+            for (int i = 0; i < n; i++)
+                if (suffixes[i] >= k) bySecond[p++] = suffixes[i] - k;
+            // Stable counting sort by the rank of the first half.
+            Arrays.fill(count, 0, classes, 0);
+            for (int i = 0; i < n; i++) count[rank[i]]++;
+            for (int i = 1; i < classes; i++) count[i] += count[i - 1];
+            for (int i = n - 1; i >= 0; i--) suffixes[--count[rank[bySecond[i]]]] = bySecond[i];
+            // Suffixes get a new rank whenever their pair of ranks differs from the previous one.
+            next[suffixes[0]] = 0;
+            classes = 1;
+            for (int i = 1; i < n; i++) {
+                int a = suffixes[i - 1];
+                int b = suffixes[i];
+                boolean same = rank[a] == rank[b]
+                        && (a + k < n ? rank[a + k] : -1) == (b + k < n ? rank[b + k] : -1);
+                next[b] = same ? classes - 1 : classes++;
+            }
+            int[] swap = rank;
+            rank = next;
+            next = swap;
+        }
+        return suffixes;
+    }
+
+    /**
+     * Computes the longest common prefix of each suffix with its predecessor in
+     * sorted order using Kasai's algorithm, in O(n).
+     */
+    static int[] buildLcp(int[] tokens, int[] suffixes) {
+        int n = tokens.length;
+        int[] lcp = new int[n];
+        int[] position = new int[n];
+        for (int i = 0; i < n; i++) position[suffixes[i]] = i;
+        int h = 0;
+        for (int i = 0; i < n; i++) {
+            if (position[i] == 0) {
+                h = 0;
+                continue;
+            }
+            int j = suffixes[position[i] - 1];
+            while (i + h < n && j + h < n && tokens[i + h] == tokens[j + h]) h++;
+            lcp[position[i]] = h;
+            if (h > 0) h--;
+        }
+        return lcp;
+    }
+}
@@ -1,81 +1,79 @@
 package org.jetbrains.research.anticopypaster.cloneprocessors;
 
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.psi.*;
-import com.intellij.psi.util.PsiTreeUtil;
 
 import java.util.*;
 
 public class TypeOneCP implements CloneProcessor {
     /**
-     * Determines if two elements are an exact text match through tree traversal
+     * Determines if two nodes are an exact text match through tree traversal
      * by type 1 standards (no whitespace or comments count).
-     * @param a The first element to compare
-     * @param b The second element to compare
+     * @param ta The tree of the first node
+     * @param a The position of the first node to compare
+     * @param tb The tree of the second node
+     * @param b The position of the second node to compare
      * @param ma The match state for the first element
      * @param mb The match state for the second element
      * @return Whether the elements match
      */
-    static boolean exactMatch(PsiElement a, PsiElement b, MatchState ma, MatchState mb) {
-        if (a == null || b == null) return false;
-        // Filter children of each element.
-        List<PsiElement> childrenA = CloneProcessor.viableChildren(a);
-        List<PsiElement> childrenB = CloneProcessor.viableChildren(b);
+    static boolean exactMatch(SignificantTree ta, int a, SignificantTree tb, int b, MatchState ma, MatchState mb) {
+        if (a < 0 || b < 0) return false;
         // No need to traverse if different number of children.
-        if (childrenA.size() != childrenB.size()) return false;
-        if (childrenA.isEmpty()) return a.textMatches(b);
+        int count = ta.childCount(a);
+        if (count != tb.childCount(b)) return false;
+        if (count == 0)
+            return ta.type(a) == tb.type(b) && ta.textHash(a) == tb.textHash(b)
+                    && ta.element(a).textMatches(tb.element(b));
         // Next level of scoped variables
         MatchState childMa = ma.extend();
         MatchState childMb = mb.extend();
         // Detect if we need to add a new variable to scope from the current element
-        CloneProcessor.updateScope(a, ma, childMa);
-        CloneProcessor.updateScope(b, mb, childMb);
+        CloneProcessor.updateScope(ta.element(a), ma, childMa);
+        CloneProcessor.updateScope(tb.element(b), mb, childMb);
         // Process children
-        for (int i = 0; i < childrenA.size(); i++) {
-            if (!exactMatch(childrenA.get(i), childrenB.get(i), childMa, childMb))
+        for (int childA = ta.firstChild(a), childB = tb.firstChild(b); childA >= 0;
+             childA = ta.nextSibling(childA), childB = tb.nextSibling(childB)) {
+            if (!exactMatch(ta, childA, tb, childB, childMa, childMb))
                 return false;
         }
         return true;
     }
 
     /**
-     * Check for a clone of the fragment starting at the given element.
-     * @return The last member element of the clone
+     * Check for a clone of the fragment starting at the given node.
+     * @return The position of the last member node of the clone, or -1 if there is no clone
      */
-    private PsiElement isDuplicateAt(PsiElement fragmentStart, PsiElement last, PsiElement start, MatchState ma, MatchState mb) {
-        if (fragmentStart == null) return null;
-        PsiElement fragCurrent = fragmentStart;
-        PsiElement dupeCurrent = start;
-        while (fragCurrent != null && dupeCurrent != null) {
-            if (!exactMatch(fragCurrent, dupeCurrent, ma, mb))
-                return null;
+    private int isDuplicateAt(SignificantTree ta, int fragmentStart, int last, SignificantTree tb, int start,
+                              MatchState ma, MatchState mb) {
+        if (fragmentStart < 0) return -1;
+        MatchState.Mark markA = ma.mark();
+        MatchState.Mark markB = mb.mark();
+        int fragCurrent = fragmentStart;
+        int dupeCurrent = start;
+        while (fragCurrent >= 0 && dupeCurrent >= 0) {
+            ProgressManager.checkCanceled();
+            if (!exactMatch(ta, fragCurrent, tb, dupeCurrent, ma, mb)) {
+                dupeCurrent = -1;
+                break;
+            }
             if (fragCurrent == last) break;
-            fragCurrent = CloneProcessor.nextNonWSOrCommentSibling(fragCurrent);
-            dupeCurrent = CloneProcessor.nextNonWSOrCommentSibling(dupeCurrent);
+            fragCurrent = ta.nextSibling(fragCurrent);
+            dupeCurrent = tb.nextSibling(dupeCurrent);
+        }
+        if (dupeCurrent < 0) {
+            // Undo what the partial match added, so the states can try the next candidate.
+            ma.rollback(markA);
+            mb.rollback(markB);
         }
         return dupeCurrent;
     }
 
     @Override
-    public List<Clone> getClonesOfType(PsiFile file, PsiStatement startStmt, PsiStatement endStmt) {
-        ArrayList<Clone> results = new ArrayList<>();
-        Collection<PsiElement> matches = PsiTreeUtil.findChildrenOfType(file, PsiStatement.class);
-        for (PsiElement match : matches) {
-            MatchState ma = new MatchState();
-            MatchState mb = new MatchState();
-            PsiElement end = isDuplicateAt(startStmt, endStmt, match, ma, mb);
-            if (end != null) {
-                results.add(new Clone(
-                        match,
-                        end,
-                        CloneProcessor.liveOut(end, mb.scope()),
-                        mb.parameters(),
-                        mb.aliasMap(),
-                        mb.typeParams(),
-                        mb.liveIn(),
-                        mb.extractable()
-                ));
-            }
-        }
-        return results;
+    public void collectClonesOfType(PsiFile file, PsiStatement startStmt, PsiStatement endStmt, List<Clone> found) {
+        // Only statements hashing like the fragment start can begin a Type-1 clone.
+        List<PsiStatement> matches = StatementHashIndex.forFile(file, CloneFingerprint.TYPE_ONE).candidates(startStmt);
+        CloneVerifier.verify(file, startStmt, endStmt, matches,
+                (tree, start, last) -> new CloneSignature(tree, start, last, true), this::isDuplicateAt, found);
     }
 }
@@ -1,5 +1,6 @@
 package org.jetbrains.research.anticopypaster.cloneprocessors;
 
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.psi.*;
 import com.intellij.psi.util.PsiTreeUtil;
 
@@ -8,19 +9,30 @@ import java.util.stream.Collectors;
 
 public class TypeTwoCP implements CloneProcessor {
     /**
-     * Check for a clone of the fragment starting at the given element.
-     * @return The last member element of the clone
+     * Check for a clone of the fragment starting at the given node.
+     * @return The position of the last member node of the clone, or -1 if there is no clone
      */
-    private PsiElement isDuplicateAt(PsiElement fragmentStart, PsiElement last, PsiElement start, MatchState ma, MatchState mb) {
-        if (fragmentStart == null) return null;
-        PsiElement fragCurrent = fragmentStart;
-        PsiElement dupeCurrent = start;
-        while (fragCurrent != null && dupeCurrent != null) {
-            if (!matchStack(fragCurrent, dupeCurrent, ma, mb))
-                return null;
+    int isDuplicateAt(SignificantTree ta, int fragmentStart, int last, SignificantTree tb, int start,
+                      MatchState ma, MatchState mb) {
+        if (fragmentStart < 0) return -1;
+        MatchState.Mark markA = ma.mark();
+        MatchState.Mark markB = mb.mark();
+        int fragCurrent = fragmentStart;
+        int dupeCurrent = start;
+        while (fragCurrent >= 0 && dupeCurrent >= 0) {
+            ProgressManager.checkCanceled();
+            if (!matchStack(ta, fragCurrent, tb, dupeCurrent, ma, mb)) {
+                dupeCurrent = -1;
+                break;
+            }
             if (fragCurrent == last) break;
-            fragCurrent = CloneProcessor.nextNonWSOrCommentSibling(fragCurrent);
-            dupeCurrent = CloneProcessor.nextNonWSOrCommentSibling(dupeCurrent);
+            fragCurrent = ta.nextSibling(fragCurrent);
+            dupeCurrent = tb.nextSibling(dupeCurrent);
+        }
+        if (dupeCurrent < 0) {
+            // Undo what the partial match added, so the states can try the next candidate.
+            ma.rollback(markA);
+            mb.rollback(markB);
         }
         return dupeCurrent;
     }
@@ -94,46 +106,48 @@ public class TypeTwoCP implements CloneProcessor {
     }
 
     /**
-     * Determines if two elements are an exact match except for identifiers,
+     * Determines if two nodes are an exact match except for identifiers,
      * literals, whitespace or comments. In other words, type two clone detection.
-     * @param a The first element to compare
-     * @param b The second element to compare
+     * @param ta The tree of the first node
+     * @param a The position of the first node to compare
+     * @param tb The tree of the second node
+     * @param b The position of the second node to compare
      * @param ma The match state for the first element
      * @param mb The match state for the second element
      * @return Whether the elements match
      */
-    static boolean matchStack(PsiElement a, PsiElement b, MatchState ma, MatchState mb) {
-        if (a == null || b == null) return false;
+    static boolean matchStack(SignificantTree ta, int a, SignificantTree tb, int b, MatchState ma, MatchState mb) {
+        if (a < 0 || b < 0) return false;
+        PsiElement elementA = ta.element(a);
+        PsiElement elementB = tb.element(b);
         // Build parameter stack
-        ParamCheckResult canBeParamA = canBeParam(a, ma);
-        ParamCheckResult canBeParamB = canBeParam(b, mb);
-//        System.out.println(a.getText() + '~' + canBeParamA.success + '|' + b.getText() + '~' + canBeParamB.success);
+        ParamCheckResult canBeParamA = canBeParam(elementA, ma);
+        ParamCheckResult canBeParamB = canBeParam(elementB, mb);
         if (canBeParamA.success && canBeParamB.success && canBeParamA.liveInDeps.size() == canBeParamB.liveInDeps.size()) {
-            ma.addParameter(a, canBeParamA.type, canBeParamA.lambdaArgs, canBeParamA.liveInDeps);
-            mb.addParameter(b, canBeParamB.type, canBeParamB.lambdaArgs, canBeParamB.liveInDeps);
+            ma.addParameter(elementA, canBeParamA.type, canBeParamA.lambdaArgs, canBeParamA.liveInDeps);
+            mb.addParameter(elementB, canBeParamB.type, canBeParamB.lambdaArgs, canBeParamB.liveInDeps);
             // Type two clone, so we can stop here and evaluate if worth extracting
             // to a parameter later.
             return true;
         }
-        // Filter children of each element
-        List<PsiElement> childrenA = CloneProcessor.viableChildren(a);
-        List<PsiElement> childrenB = CloneProcessor.viableChildren(b);
         // No need to traverse if different number of children
-        if (childrenA.size() != childrenB.size()) return false;
-        if (childrenA.isEmpty()) {
+        int count = ta.childCount(a);
+        if (count != tb.childCount(b)) return false;
+        if (count == 0) {
+            if (ta.textHash(a) == tb.textHash(b) && elementA.textMatches(elementB)) return true;
             // Check for aliased variable equivalence
-            int idA = ma.getAliasID(a);
-            int idB = mb.getAliasID(b);
-            return a.textMatches(b) || (idA == idB && idA >= 0);
+            int idA = ma.getAliasID(elementA);
+            int idB = mb.getAliasID(elementB);
+            return idA == idB && idA >= 0;
         }
         // Next level of scoped variables
         MatchState childMa = ma.extend();
         MatchState childMb = mb.extend();
         // Detect if we need to add a new variable to scope from the current element
-        CloneProcessor.updateScope(a, ma, childMa);
-        CloneProcessor.updateScope(b, mb, childMb);
+        CloneProcessor.updateScope(elementA, ma, childMa);
+        CloneProcessor.updateScope(elementB, mb, childMb);
         // See if we have a type parameter
-        if (a instanceof PsiTypeElement typeA && b instanceof PsiTypeElement typeB) {
+        if (elementA instanceof PsiTypeElement typeA && elementB instanceof PsiTypeElement typeB) {
             ma.typeParams().add(typeA);
             mb.typeParams().add(typeB);
             if (!typeA.getText().equals(typeB.getText()))
@@ -141,35 +155,20 @@ public class TypeTwoCP implements CloneProcessor {
             return true;
         }
         // Process children
-        for (int i = 0; i < childrenA.size(); i++) {
-            if (!matchStack(childrenA.get(i), childrenB.get(i), childMa, childMb))
+        for (int childA = ta.firstChild(a), childB = tb.firstChild(b); childA >= 0;
+             childA = ta.nextSibling(childA), childB = tb.nextSibling(childB)) {
+            if (!matchStack(ta, childA, tb, childB, childMa, childMb))
                 return false;
         }
         return true;
     }
 
     @Override
-    public List<Clone> getClonesOfType(PsiFile file, PsiStatement startStmt, PsiStatement endStmt) {
-        ArrayList<Clone> results = new ArrayList<>();
-        Collection<PsiElement> matches = PsiTreeUtil.findChildrenOfType(file, PsiStatement.class);
-        for (PsiElement match : matches) {
-            MatchState ma = new MatchState();
-            MatchState mb = new MatchState();
-            PsiElement end = isDuplicateAt(startStmt, endStmt, match, ma, mb);
-            if (end != null) {
-                results.add(new Clone(
-                        match,
-                        end,
-                        CloneProcessor.liveOut(end, mb.scope()),
-                        mb.parameters(),
-                        mb.aliasMap(),
-                        mb.typeParams(),
-                        mb.liveIn(),
-                        mb.extractable()
-                ));
-            }
-        }
-        return results;
+    public void collectClonesOfType(PsiFile file, PsiStatement startStmt, PsiStatement endStmt, List<Clone> found) {
+        // Only statements fingerprinting like the fragment start can begin a Type-2 clone.
+        List<PsiStatement> matches = StatementHashIndex.forFile(file, CloneFingerprint.TYPE_TWO).candidates(startStmt);
+        CloneVerifier.verify(file, startStmt, endStmt, matches,
+                (tree, start, last) -> new CloneSignature(tree, start, last, false), this::isDuplicateAt, found);
     }
 
     private record ParamCheckResult(boolean success, String type, Set<Integer> lambdaArgs, Set<PsiVariable> liveInDeps) {
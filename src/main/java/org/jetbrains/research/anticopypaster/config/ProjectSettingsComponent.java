@@ -436,6 +436,7 @@ public class ProjectSettingsComponent {
         return switch (cloneTypeComboBox.getSelectedIndex()) {
             case 0 -> ProjectSettingsState.ExtractionType.TYPE_ONE;
             case 1 -> ProjectSettingsState.ExtractionType.TYPE_TWO;
+            case 2 -> ProjectSettingsState.ExtractionType.TOKEN_STREAM;
             default -> throw new IllegalStateException("Unknown option selected.");
         };
     }
@@ -466,6 +467,17 @@ public class ProjectSettingsComponent {
         keywordsSlider.setValue(sensitivity);
     }
 
+    /**
+     * Shows the confidence interval of the thresholds of each category in the tooltip of its slider.
+     * A null description clears the tooltip.
+     */
+    public void setThresholdBounds(String keywords, String coupling, String size, String complexity) {
+        keywordsSlider.setToolTipText(keywords);
+        couplingSlider.setToolTipText(coupling);
+        sizeSlider.setToolTipText(size);
+        complexitySlider.setToolTipText(complexity);
+    }
+
     public boolean getKeywordsEnabled() {
         return keywordsEnabledCheckBox.isSelected();
     }
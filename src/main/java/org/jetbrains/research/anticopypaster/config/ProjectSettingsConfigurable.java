@@ -5,8 +5,11 @@ import com.intellij.openapi.options.ConfigurationException;
 import com.intellij.openapi.project.Project;
 import org.jetbrains.annotations.Nls;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.research.anticopypaster.metrics.features.Feature;
+import org.jetbrains.research.anticopypaster.utils.*;
 
 import javax.swing.*;
+import java.util.List;
 import java.util.Objects;
 
 public class ProjectSettingsConfigurable implements Configurable {
@@ -114,6 +117,8 @@ public class ProjectSettingsConfigurable implements Configurable {
         settings.setFilesPath(settingsComponent.getFilesPath());
         settings.setAllFilesCheckboxes(settingsComponent.getAllFilesCheckboxes());
         settings.setSelectedAnalysisButton(settingsComponent.getSelectedAnalysisButton());
+        ProjectSettingsState.notifyChanged(project);
+        showThresholdBounds();
     }
 
     // Pull from saved state to preset dialog state upon opening
@@ -147,6 +152,38 @@ public class ProjectSettingsConfigurable implements Configurable {
         settingsComponent.setFilesPath(settings.getFilesPath());
         settingsComponent.setAllFilesCheckboxes(settings.getAllFilesCheckboxes());
         settingsComponent.setSelectedAnalysisButton(settings.getSelectedAnalysisButton());
+        showThresholdBounds();
+    }
+
+    /**
+     * Shows how precisely the saved sensitivities place the thresholds, when the
+     * thresholds are estimated from a sample of the project's methods.
+     */
+    private void showThresholdBounds() {
+        ProjectMetricsStore store = ProjectMetricsStore.getInstance(project);
+        if (store == null || !store.isLoaded() || !store.isSampled()) {
+            settingsComponent.setThresholdBounds(null, null, null, null);
+            return;
+        }
+        settingsComponent.setThresholdBounds(
+                describeThresholdBounds(new KeywordsMetrics(null, project), store),
+                describeThresholdBounds(new CouplingMetrics(null, project), store),
+                describeThresholdBounds(new SizeMetrics(null, project), store),
+                describeThresholdBounds(new ComplexityMetrics(null, project), store));
+    }
+
+    private static String describeThresholdBounds(Flag flag, ProjectMetricsStore store) {
+        flag.useSketches(store::getSketch);
+        float[] thresholds = flag.getThresholds();
+        float[][] bounds = flag.getThresholdBounds();
+        List<Feature> metrics = flag.getSelectedMetrics();
+        StringBuilder sb = new StringBuilder("<html>Thresholds are estimated from a sample of the project's methods."
+                + "<br>Threshold and 95% confidence interval of each metric:");
+        for (int i = 0; i < metrics.size(); i++) {
+            sb.append("<br>").append(metrics.get(i).getName()).append(": ").append(thresholds[i])
+                    .append(" [").append(bounds[0][i]).append(", ").append(bounds[1][i]).append("]");
+        }
+        return sb.append("</html>").toString();
     }
 
     @Override
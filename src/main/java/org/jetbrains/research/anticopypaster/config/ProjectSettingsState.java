@@ -5,6 +5,7 @@ import com.intellij.openapi.components.Service;
 import com.intellij.openapi.components.State;
 import com.intellij.openapi.components.Storage;
 import com.intellij.openapi.project.Project;
+import com.intellij.util.messages.Topic;
 import com.intellij.util.xmlb.XmlSerializerUtil;
 import org.jetbrains.research.anticopypaster.config.advanced.AdvancedProjectSettingsComponent.JavaKeywords;
 import org.jetbrains.annotations.NotNull;
@@ -21,6 +22,16 @@ import java.util.EnumMap;
 )
 public final class ProjectSettingsState implements PersistentStateComponent<ProjectSettingsState> {
 
+    /**
+     * Notified on the project's message bus after the settings pages have changed the settings.
+     */
+    public interface SettingsListener {
+        void settingsChanged();
+    }
+
+    public static final Topic<SettingsListener> SETTINGS_CHANGED =
+            new Topic<>("AntiCopyPaster settings", SettingsListener.class);
+
     // PRIMARY SETTINGS STATES
     public int minimumDuplicateMethods = 2;
     public int timeBuffer = 10;
@@ -29,6 +40,9 @@ public final class ProjectSettingsState implements PersistentStateComponent<Proj
 
     public int maxParams = 10;
 
+    // Most methods whose metrics the user settings model keeps, sampled by module; 0 keeps every method
+    public int metricsSampleSize = 20000;
+
     public boolean keywordsEnabled = true, couplingEnabled = true, sizeEnabled = true, complexityEnabled = true,
             keywordsRequired = false, couplingRequired = false, sizeRequired = false, complexityRequired = false;
 
@@ -59,6 +73,9 @@ public final class ProjectSettingsState implements PersistentStateComponent<Proj
     public Boolean[] measureSizeByLines = {true, true}, measureSizeBySymbols = {false, false}, measureSizeBySymbolsPerLine = {false, false};
     public Boolean[] measureTotalSize = {true, true}, measureMethodDeclarationSize = {false, false};
 
+    // Clone Search: longest a single paste may spend searching for clones, in milliseconds; 0 searches without a limit
+    public int cloneSearchTimeBudgetMs = 500;
+
     // Statistics collection database credentials
     public String statisticsUsername = null;
     public boolean statisticsPasswordIsSet = false;
@@ -83,6 +100,61 @@ public final class ProjectSettingsState implements PersistentStateComponent<Proj
         return project.getService(ProjectSettingsState.class);
     }
 
+    /**
+     * Tells the listeners of the project that its settings have changed.
+     */
+    public static void notifyChanged(Project project) {
+        project.getMessageBus().syncPublisher(SETTINGS_CHANGED).settingsChanged();
+    }
+
+    /**
+     * Packs every setting the user settings model reads: the sensitivities, the enabled and
+     * required categories and submetrics, and the active keywords. Two stamps are equal
+     * exactly when those settings are, however they were written.
+     */
+    public long[] userModelStamp() {
+        long categories = flagBits(keywordsEnabled, couplingEnabled, sizeEnabled, complexityEnabled,
+                keywordsRequired, couplingRequired, sizeRequired, complexityRequired);
+        for (JavaKeywords keyword : JavaKeywords.values()) {
+            if (Boolean.TRUE.equals(activeKeywords.get(keyword)))
+                categories |= 1L << (8 + keyword.ordinal());
+        }
+        long submetrics = submetricBits(measureKeywordsTotal, measureKeywordsDensity,
+                measureCouplingTotal, measureCouplingDensity,
+                measureTotalConnectivity, measureFieldConnectivity, measureMethodConnectivity,
+                measureComplexityTotal, measureComplexityDensity,
+                measureMethodDeclarationArea, measureMethodDeclarationDepthPerLine,
+                measureSizeByLines, measureSizeBySymbols, measureSizeBySymbolsPerLine,
+                measureTotalSize, measureMethodDeclarationSize);
+        return new long[]{
+                ((long) keywordsSensitivity << 32) | (couplingSensitivity & 0xFFFFFFFFL),
+                ((long) sizeSensitivity << 32) | (complexitySensitivity & 0xFFFFFFFFL),
+                categories,
+                submetrics
+        };
+    }
+
+    private static long flagBits(boolean... values) {
+        long result = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i]) result |= 1L << i;
+        }
+        return result;
+    }
+
+    /**
+     * Packs the enabled and required flag of each submetric, two bits per submetric.
+     */
+    private static long submetricBits(Boolean[]... submetrics) {
+        long result = 0;
+        for (int i = 0; i < submetrics.length; i++) {
+            for (int j = 0; j < submetrics[i].length && j < 2; j++) {
+                if (Boolean.TRUE.equals(submetrics[i][j])) result |= 1L << (2 * i + j);
+            }
+        }
+        return result;
+    }
+
     @Nullable
     @Override
     public ProjectSettingsState getState() {
@@ -166,7 +238,8 @@ public final class ProjectSettingsState implements PersistentStateComponent<Proj
 
     public enum ExtractionType {
         TYPE_ONE(0),
-        TYPE_TWO(1);
+        TYPE_TWO(1),
+        TOKEN_STREAM(2);
 
         private int idx;
         ExtractionType(int idx) {
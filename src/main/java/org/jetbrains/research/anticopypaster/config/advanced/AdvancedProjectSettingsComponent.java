@@ -81,6 +81,7 @@ public class AdvancedProjectSettingsComponent {
     private JButton selectAllButton;
     private JButton selectNoneButton;
     private JLabel enabledKeywordsHelp;
+    private JSpinner cloneSearchTimeBudgetSpinner;
 
     public JPanel getPanel() {
         return masterPanel;
@@ -128,6 +129,7 @@ public class AdvancedProjectSettingsComponent {
         addConditionallyEnabledCheckboxGroup(measureSizeOfSegmentCheckBox, requiredSubmetricCheckBox14);
         addConditionallyEnabledCheckboxGroup(measureSizeOfMethodCheckBox, requiredSubmetricCheckBox15);
 
+        cloneSearchTimeBudgetSpinner.setModel(new SpinnerNumberModel(500, 0, Integer.MAX_VALUE, 100));
     }
 
     private void createUIComponents() {
@@ -283,6 +285,10 @@ public class AdvancedProjectSettingsComponent {
         requiredSubmetricCheckBox15.setSelected(required);
     }
 
+    public void setCloneSearchTimeBudget(int budgetMs) {
+        cloneSearchTimeBudgetSpinner.setValue(budgetMs);
+    }
+
 
     public Boolean[] getKeywordTotalSubmetricInfo() { return new Boolean[] {totalKeywordCountInCheckBox.isSelected(), requiredSubmetricCheckBox.isSelected()}; }
     public Boolean[] getKeywordDensitySubmetricInfo() { return new Boolean[] {keywordDensityPerLineCheckBox.isSelected(), requiredSubmetricCheckBox1.isSelected()}; }
@@ -340,4 +346,6 @@ public class AdvancedProjectSettingsComponent {
     public Boolean[] getSizeBySymbolDensitySubmetricInfo() { return new Boolean[] {densityOfSymbolsInCheckBox.isSelected(), requiredSubmetricCheckBox13.isSelected()}; }
     public Boolean[] getMeasureSizeOfSegmentInfo() { return new Boolean[] {measureSizeOfSegmentCheckBox.isSelected(), requiredSubmetricCheckBox14.isSelected()}; }
     public Boolean[] getMeasureSizeOfMethodInfo() { return new Boolean[] {measureSizeOfMethodCheckBox.isSelected(), requiredSubmetricCheckBox15.isSelected()}; }
+
+    public int getCloneSearchTimeBudget() { return (int) cloneSearchTimeBudgetSpinner.getValue(); }
 }
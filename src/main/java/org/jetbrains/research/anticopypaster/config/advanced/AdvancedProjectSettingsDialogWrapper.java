@@ -64,6 +64,9 @@ public class AdvancedProjectSettingsDialogWrapper extends DialogWrapper {
             settings.measureSizeBySymbolsPerLine = settingsComponent.getSizeBySymbolDensitySubmetricInfo();
             settings.measureTotalSize = settingsComponent.getMeasureSizeOfSegmentInfo();
             settings.measureMethodDeclarationSize = settingsComponent.getMeasureSizeOfMethodInfo();
+
+            settings.cloneSearchTimeBudgetMs = settingsComponent.getCloneSearchTimeBudget();
+            ProjectSettingsState.notifyChanged(project);
         }
     }
 
@@ -91,6 +94,8 @@ public class AdvancedProjectSettingsDialogWrapper extends DialogWrapper {
         settingsComponent.setSizeByDensityOfSymbolsSubmetric(settings.measureSizeBySymbolsPerLine[0], settings.measureSizeBySymbolsPerLine[1]);
         settingsComponent.setMeasureSizeOfSegment(settings.measureTotalSize[0], settings.measureTotalSize[1]);
         settingsComponent.setMeasureSizeOfMethod(settings.measureMethodDeclarationSize[0], settings.measureMethodDeclarationSize[1]);
+
+        settingsComponent.setCloneSearchTimeBudget(settings.cloneSearchTimeBudgetMs);
     }
 
 }
@@ -1,14 +1,19 @@
 package org.jetbrains.research.anticopypaster.ide;
 
+import com.intellij.concurrency.SensitiveProgressWrapper;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.*;
 import com.intellij.psi.*;
 import com.intellij.util.IncorrectOperationException;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import org.jetbrains.research.anticopypaster.cloneprocessors.*;
 import org.jetbrains.research.anticopypaster.config.ProjectSettingsState;
 import org.jetbrains.research.anticopypaster.utils.PsiUtil;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 public final class DuplicatesInspection {
     private static final Logger LOG = Logger.getInstance(AntiCopyPastePreProcessor.class);
@@ -24,8 +29,21 @@ public final class DuplicatesInspection {
      * @return the result of duplicates' detection.
      */
     public InspectionResult resolve(PsiFile file, PsiMethod containingMethod, final String code) {
+        return resolve(file, containingMethod, code, false);
+    }
+
+    /**
+     * Searches for duplicates of the piece of code, optionally in every file of the project
+     * that the clone fingerprint index reports as containing a candidate.
+     *
+     * @param file the file the code was pasted into.
+     * @param code the piece of code to search for.
+     * @param projectWide whether to search the other files of the project as well.
+     * @return the result of duplicates' detection.
+     */
+    public InspectionResult resolve(PsiFile file, PsiMethod containingMethod, final String code, boolean projectWide) {
         ArrayList<Clone> results = new ArrayList<>();
-        InspectionResult result = new InspectionResult(results);
+        boolean complete = true;
         try {
             int startIdx = containingMethod.getBody().getText().indexOf(code);
             int endIdx = startIdx + code.length() - 1;
@@ -37,20 +55,71 @@ public final class DuplicatesInspection {
             while (endStmt < stmts.length - 1 && endIdx > stmts[endStmt + 1].getStartOffsetInParent())
                 endStmt++;
 
-            CloneProcessor processor = switch (ProjectSettingsState.getInstance(file.getProject()).extractionType) {
+            ProjectSettingsState settings = ProjectSettingsState.getInstance(file.getProject());
+            CloneProcessor processor = switch (settings.extractionType) {
                 case TYPE_ONE -> new TypeOneCP();
                 case TYPE_TWO -> new TypeTwoCP();
+                case TOKEN_STREAM -> new TokenStreamCP();
             };
-            results.addAll(processor.getClonesOfType(file, stmts[startStmt], stmts[endStmt]));
+            List<PsiFile> files = projectWide
+                    ? CloneFingerprintIndex.candidateFiles(file.getProject(), stmts[startStmt])
+                    : List.of(file);
+            complete = searchWithinBudget(processor, files, stmts[startStmt], stmts[endStmt],
+                    settings.cloneSearchTimeBudgetMs, results);
         } catch (IncorrectOperationException ex) {
             LOG.error(ex);
-            return result;
+            return new InspectionResult(results, complete);
         }
 
         for (int i = results.size() - 1; i >= 0; i--)
             if (results.get(i).liveOutVars().size() > 1) results.remove(i);
-        return result;
+        return new InspectionResult(results, complete);
+    }
+
+    /**
+     * Searches the files one after another until all are done or the time budget runs out.
+     * The search is cancelled through its progress indicator once the budget is spent,
+     * and cancelling the caller's indicator still cancels the search as a whole.
+     *
+     * @param budgetMs the time budget in milliseconds, or 0 or less for no limit.
+     * @param results receives the clones found, including those of a file whose search ran out of time.
+     * @return whether every file was searched.
+     */
+    private static boolean searchWithinBudget(CloneProcessor processor, List<PsiFile> files, PsiStatement start,
+                                              PsiStatement end, int budgetMs, List<Clone> results) {
+        ProgressIndicator outer = ProgressManager.getInstance().getProgressIndicator();
+        ProgressIndicator indicator = outer != null ? new SensitiveProgressWrapper(outer) : new EmptyProgressIndicator();
+        ScheduledFuture<?> deadline = budgetMs > 0
+                ? AppExecutorUtil.getAppScheduledExecutorService().schedule(indicator::cancel, budgetMs, TimeUnit.MILLISECONDS)
+                : null;
+        try {
+            for (PsiFile candidateFile : files)
+                ProgressManager.getInstance().executeProcessUnderProgress(() ->
+                        processor.collectClonesOfType(candidateFile, start, end, results), indicator);
+            return true;
+        } catch (ProcessCanceledException e) {
+            // Only running out of time is handled here, anything else cancels the caller too.
+            if (outer != null && outer.isCanceled()) throw e;
+            return false;
+        } finally {
+            if (deadline != null) deadline.cancel(false);
+        }
     }
 
-    public record InspectionResult(List<Clone> results) {}
+    /**
+     * @param results the clones found. If the search isn't complete, these are only some of them,
+     *                and may not include the searched code itself.
+     * @param complete whether every candidate was checked, or the time budget ran out first.
+     */
+    public record InspectionResult(List<Clone> results, boolean complete) {
+        /**
+         * @return the clones found in the given file, which are the only ones an extraction into it can replace.
+         */
+        public List<Clone> inFile(PsiFile file) {
+            List<Clone> inFile = new ArrayList<>();
+            for (Clone clone : results)
+                if (clone.start().getContainingFile() == file) inFile.add(clone);
+            return inFile;
+        }
+    }
 }
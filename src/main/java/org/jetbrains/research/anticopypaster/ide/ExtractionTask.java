@@ -457,9 +457,31 @@ public class ExtractionTask {
             PsiClass containingClass = containingMethod.getContainingClass();
             if (containingClass == null) return;
 
-            List<Clone> results = new DuplicatesInspection().resolve(file, event.getDestinationMethod(), text).results();
-            if (results.size() < ProjectSettingsState.getInstance(project).minimumDuplicateMethods)
+            DuplicatesInspection.InspectionResult inspection =
+                    new DuplicatesInspection().resolve(file, event.getDestinationMethod(), text);
+            // A partial search may miss the pasted code itself, which the extraction starts from.
+            if (!inspection.complete()) {
+                Messages.showInfoMessage(
+                        project,
+                        "The search for clones ran out of time, so they can't all be extracted safely. Extraction aborted.",
+                        "AntiCopyPaster Method Extractor"
+                );
                 return;
+            }
+            List<Clone> results = inspection.results();
+            int minimumDuplicates = ProjectSettingsState.getInstance(project).minimumDuplicateMethods;
+            if (results.size() < minimumDuplicates) {
+                Messages.showInfoMessage(
+                        project,
+                        "Only "
+                                + results.size()
+                                + " duplicates of this code fragment are left in this file, but the minimum set in your settings is "
+                                + minimumDuplicates
+                                + ". Duplicates in other files can't be extracted into this class. Extraction aborted.",
+                        "AntiCopyPaster Method Extractor"
+                );
+                return;
+            }
             // Allow the user to choose to extract each clone
             askWhichClonesToExtract(results);
 
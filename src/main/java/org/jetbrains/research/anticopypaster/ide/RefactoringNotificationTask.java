@@ -3,26 +3,28 @@ package org.jetbrains.research.anticopypaster.ide;
 import com.github.weisj.jsvg.S;
 import com.intellij.CommonBundle;
 import com.intellij.notification.*;
-import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ReadAction;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.ui.MessageConstants;
 import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.util.Disposer;
 import com.intellij.psi.*;
 import com.intellij.psi.util.PsiTreeUtil;
 import com.intellij.refactoring.extractMethod.ExtractMethodProcessor;
 import com.intellij.refactoring.extractMethod.PrepareFailedException;
 
 import org.jetbrains.research.anticopypaster.AntiCopyPasterBundle;
-import org.jetbrains.research.anticopypaster.cloneprocessors.Clone;
 import org.jetbrains.research.anticopypaster.config.ProjectSettingsState;
 import org.jetbrains.research.anticopypaster.models.AiderModel;
 import org.jetbrains.research.anticopypaster.models.PredictionModel;
 import org.jetbrains.research.anticopypaster.models.TensorflowModel;
 import org.jetbrains.research.anticopypaster.models.UserSettingsModel;
 import org.jetbrains.research.anticopypaster.statistics.AntiCopyPasterUsageStatistics;
-import org.jetbrains.research.anticopypaster.utils.MetricsGatherer;
 import org.jetbrains.research.anticopypaster.metrics.MetricCalculator;
+import org.jetbrains.research.anticopypaster.metrics.features.Feature;
 import org.jetbrains.research.anticopypaster.metrics.features.FeaturesVector;
 
 import java.io.FileWriter;
@@ -63,9 +65,11 @@ public class RefactoringNotificationTask extends TimerTask {
         ProjectSettingsState.JudgementModel currentModelType = ProjectSettingsState.getInstance(project).judgementModel;
         if (model == null || currentModelType != lastModelType) {
             lastModelType = currentModelType;
+            if (model instanceof Disposable previous) Disposer.dispose(previous);
             model = switch (currentModelType) {
                 case TENSORFLOW -> new TensorflowModel();
-                case USER_SETTINGS -> new UserSettingsModel(new MetricsGatherer(project), project);
+                // Metrics are gathered once per project and shared by every model.
+                case USER_SETTINGS -> new UserSettingsModel(project);
                 case AIDER -> new AiderModel(project, file);
             };
         }
@@ -104,42 +108,69 @@ public class RefactoringNotificationTask extends TimerTask {
 
     @Override
     public void run() {
-        while (!eventsQueue.isEmpty()) {
-//            final PredictionModel model = getOrInitModel();
+        RefactoringEvent event;
+        while ((event = eventsQueue.poll()) != null) {
             try {
-                final RefactoringEvent event = eventsQueue.poll();
-                ApplicationManager.getApplication().runReadAction(() -> {
-                    event.setReasonToExtract(AntiCopyPasterBundle.message(
-                            "extract.method.to.simplify.logic.of.enclosing.method"));
-                    // Get project settings
-                    ProjectSettingsState settings = ProjectSettingsState.getInstance(project);
-
-                    List<Clone> results = new DuplicatesInspection().resolve(event.getFile(), event.getDestinationMethod(), event.getText()).results();
-                    if (results.size() < settings.minimumDuplicateMethods)
-                        return;
-
-                    FeaturesVector featuresVector = calculateFeatures(event);
-
-                    getOrInitModel();
-                    modelSensitivity = ProjectSettingsState.getInstance(project).modelSensitivity;
-
-                    float threshold = modelSensitivity; // divide it by 100 since the prediction is a decimal < 1
-                    float prediction = this.model.predict(featuresVector);
-                    if ((event.isForceExtraction() || prediction > threshold) &&
-                            canBeExtracted(event)) {
-                        notify(event.getProject(),
-                                AntiCopyPasterBundle.message(
-                                        "extract.method.refactoring.is.available"),
-                                getRunnableToShowSuggestionDialog(event)
-                        );
-                    }
-                });
+                processEvent(event);
+            } catch (ProcessCanceledException e) {
+                // Throwing out of a TimerTask would stop the timer, so the event waits for the next run instead.
+                if (!project.isDisposed()) eventsQueue.add(event);
+                return;
             } catch (Exception e) {
 //                LOG.error("[ACP] Can't process an event " + e.getMessage());
             }
         }
     }
 
+    /**
+     * Notifies about the event if the pasted code has enough duplicates and the model recommends extracting it.
+     * PSI is only read inside non-blocking read actions, so that a write action cancels and restarts
+     * them instead of waiting for them. A restart runs the action again, so nothing else happens inside.
+     */
+    private void processEvent(RefactoringEvent event) {
+        event.setReasonToExtract(AntiCopyPasterBundle.message(
+                "extract.method.to.simplify.logic.of.enclosing.method"));
+        // Get project settings
+        ProjectSettingsState settings = ProjectSettingsState.getInstance(project);
+
+        DuplicatesInspection.InspectionResult inspection = ReadAction.nonBlocking(() -> new DuplicatesInspection()
+                        .resolve(event.getFile(), event.getDestinationMethod(), event.getText(), true))
+                .executeSynchronously();
+        // Extraction only rewrites the clones in the pasted file, so only those count towards the minimum.
+        int inFile = ReadAction.nonBlocking(() -> inspection.inFile(event.getFile()).size()).executeSynchronously();
+        if (inFile < settings.minimumDuplicateMethods) {
+            if (!inspection.complete())
+                LOG.debug("[ACP] Clone search ran out of time before finding enough duplicates, not notifying.");
+            return;
+        }
+        int inOtherFiles = inspection.results().size() - inFile;
+        if (inOtherFiles > 0)
+            event.setReasonToExtract(AntiCopyPasterBundle.message(
+                    "extract.method.with.duplicates.in.other.files", inOtherFiles));
+
+        getOrInitModel();
+        // One snapshot for the whole event, so the features computed are the ones its prediction reads.
+        PredictionModel predictionModel = this.model.snapshot();
+        Set<Feature> requiredFeatures = predictionModel.requiredFeatures();
+        FeaturesVector featuresVector = ReadAction.nonBlocking(() -> calculateFeatures(event, requiredFeatures))
+                .executeSynchronously();
+
+        modelSensitivity = settings.modelSensitivity;
+
+        float threshold = modelSensitivity; // divide it by 100 since the prediction is a decimal < 1
+        float prediction = predictionModel.predict(featuresVector);
+        if ((event.isForceExtraction() || prediction > threshold) &&
+                ReadAction.nonBlocking(() -> canBeExtracted(event)).executeSynchronously()) {
+            // A partial search still found enough duplicates, but the notification says the list may be incomplete.
+            notify(event.getProject(),
+                    AntiCopyPasterBundle.message(inspection.complete()
+                            ? "extract.method.refactoring.is.available"
+                            : "extract.method.refactoring.is.available.partial.search"),
+                    getRunnableToShowSuggestionDialog(event)
+            );
+        }
+    }
+
     public boolean canBeExtracted(RefactoringEvent event) {
         boolean canBeExtracted;
         int startOffset = getStartOffset(event.getEditor(), event.getFile(), event.getText());
@@ -203,7 +234,7 @@ public class RefactoringNotificationTask extends TimerTask {
     /**
      * Calculates the metrics for the pasted code fragment and a method where the code fragment was pasted into.
      */
-    private FeaturesVector calculateFeatures(RefactoringEvent event) {
+    private FeaturesVector calculateFeatures(RefactoringEvent event, Set<Feature> requiredFeatures) {
         PsiFile file = event.getFile();
         PsiMethod methodAfterPasting = event.getDestinationMethod();
         int eventBeginLine = getNumberOfLine(file,
@@ -212,7 +243,7 @@ public class RefactoringNotificationTask extends TimerTask {
                 methodAfterPasting.getTextRange().getEndOffset());
         MetricCalculator metricCalculator =
                 new MetricCalculator(methodAfterPasting, event.getText(),
-                        eventBeginLine, eventEndLine);
+                        eventBeginLine, eventEndLine, requiredFeatures);
 
         return metricCalculator.getFeaturesVector();
     }
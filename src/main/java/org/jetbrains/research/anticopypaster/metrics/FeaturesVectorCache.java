@@ -0,0 +1,188 @@
+package org.jetbrains.research.anticopypaster.metrics;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiMethod;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.DataInputOutputUtil;
+import com.intellij.util.io.DigestUtil;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import com.intellij.util.io.IOUtil;
+import com.intellij.util.io.PersistentHashMap;
+import org.jetbrains.research.anticopypaster.metrics.features.Feature;
+import org.jetbrains.research.anticopypaster.metrics.features.FeaturesVector;
+import org.jetbrains.research.anticopypaster.metrics.utils.LineTable;
+import org.jetbrains.research.anticopypaster.metrics.utils.MemberSets;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Feature vectors of whole methods, persisted under the IDE's system directory
+ * so that methods unchanged since the last session are not measured again.
+ * A vector is keyed by a hash of everything it is computed from: the text of the
+ * method, its number of lines and the member names of its file.
+ */
+@Service(Service.Level.PROJECT)
+public final class FeaturesVectorCache implements Disposable {
+    private static final Logger LOG = Logger.getInstance(FeaturesVectorCache.class);
+    /**
+     * Version of the stored vectors, so vectors of older versions are dropped. It changes with
+     * the features and their ids, and with {@link MetricCalculator#VERSION} for the rest.
+     */
+    private static final int VERSION = versionOf(Feature.values(), MetricCalculator.VERSION);
+    private static final int INITIAL_SIZE = 4096;
+
+    private static final DataExternalizer<float[]> VALUE_EXTERNALIZER = new DataExternalizer<>() {
+        @Override
+        public void save(DataOutput out, float[] value) throws IOException {
+            DataInputOutputUtil.writeINT(out, value.length);
+            for (float v : value)
+                out.writeFloat(v);
+        }
+
+        @Override
+        public float[] read(DataInput in) throws IOException {
+            float[] value = new float[DataInputOutputUtil.readINT(in)];
+            for (int i = 0; i < value.length; i++)
+                value[i] = in.readFloat();
+            return value;
+        }
+    };
+
+    /**
+     * The storage, or null if it couldn't be opened or the project is closed.
+     * Every vector is then computed again.
+     */
+    private PersistentHashMap<String, float[]> storage;
+
+    public FeaturesVectorCache(Project project) {
+        storage = open(Paths.get(PathManager.getSystemPath(), "anticopypaster", project.getLocationHash(), "features"));
+    }
+
+    public static FeaturesVectorCache getInstance(Project project) {
+        return project.getService(FeaturesVectorCache.class);
+    }
+
+    /**
+     * Gets the features of whole methods of one file, computing the missing ones in a single batch.
+     * @param file File containing the methods
+     * @param methods Methods to measure
+     * @return The features of each method, in the order of the methods
+     */
+    public List<FeaturesVector> getAll(PsiFile file, List<PsiMethod> methods) {
+        if (methods.isEmpty()) return new ArrayList<>();
+        LineTable lines = LineTable.forFile(file);
+        List<FeaturesVector> result = new ArrayList<>(Collections.nCopies(methods.size(), null));
+        List<PsiMethod> missing = new ArrayList<>();
+        List<Integer> missingIndices = new ArrayList<>();
+        List<String> missingKeys = new ArrayList<>();
+        for (int i = 0; i < methods.size(); i++) {
+            PsiMethod method = methods.get(i);
+            TextRange range = method.getTextRange();
+            String key = keyOf(method, method.getText(),
+                    lines.lineOf(range.getEndOffset()) - lines.lineOf(range.getStartOffset()));
+            float[] cached = read(key);
+            if (cached != null) {
+                result.set(i, new FeaturesVector(cached));
+            } else {
+                missing.add(method);
+                missingIndices.add(i);
+                missingKeys.add(key);
+            }
+        }
+        List<FeaturesVector> computed = MetricCalculator.calculateForFile(file, missing);
+        for (int i = 0; i < computed.size(); i++) {
+            result.set(missingIndices.get(i), computed.get(i));
+            write(missingKeys.get(i), computed.get(i).buildArray());
+        }
+        return result;
+    }
+
+    private static String keyOf(PsiMethod method, String text, int lineSpan) {
+        MessageDigest digest = DigestUtil.sha256();
+        digest.update(MemberSets.forFile(method.getContainingFile()).digest());
+        digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(lineSpan).array());
+        digest.update(text.getBytes(StandardCharsets.UTF_8));
+        return StringUtil.toHexString(digest.digest());
+    }
+
+    private synchronized float[] read(String key) {
+        if (storage == null) return null;
+        try {
+            return storage.get(key);
+        } catch (IOException e) {
+            LOG.warn("[ACP] Failed to read from the feature cache, it is disabled until restart.", e);
+            close();
+            return null;
+        }
+    }
+
+    private synchronized void write(String key, float[] value) {
+        if (storage == null) return;
+        try {
+            storage.put(key, value);
+        } catch (IOException e) {
+            LOG.warn("[ACP] Failed to write to the feature cache, it is disabled until restart.", e);
+            close();
+        }
+    }
+
+    private static int versionOf(Feature[] features, int calculatorVersion) {
+        int hash = calculatorVersion;
+        for (Feature feature : features)
+            hash = 31 * (31 * hash + feature.getName().hashCode()) + feature.getId();
+        return hash;
+    }
+
+    private static PersistentHashMap<String, float[]> open(Path path) {
+        try {
+            return create(path);
+        } catch (IOException e) {
+            LOG.warn("[ACP] The feature cache is corrupted, starting a new one.", e);
+            IOUtil.deleteAllFilesStartingWith(path.toFile());
+        }
+        try {
+            return create(path);
+        } catch (IOException e) {
+            LOG.warn("[ACP] Failed to open the feature cache.", e);
+            return null;
+        }
+    }
+
+    private static PersistentHashMap<String, float[]> create(Path path) throws IOException {
+        Files.createDirectories(path.getParent());
+        return new PersistentHashMap<>(path, EnumeratorStringDescriptor.INSTANCE, VALUE_EXTERNALIZER,
+                INITIAL_SIZE, VERSION);
+    }
+
+    private void close() {
+        try {
+            storage.close();
+        } catch (IOException e) {
+            LOG.warn("[ACP] Failed to close the feature cache.", e);
+        }
+        storage = null;
+    }
+
+    @Override
+    public synchronized void dispose() {
+        if (storage != null) close();
+    }
+}
@@ -1,39 +1,110 @@
 package org.jetbrains.research.anticopypaster.metrics;
 
+import com.intellij.lang.java.JavaParserDefinition;
+import com.intellij.lexer.Lexer;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.psi.JavaTokenType;
 import com.intellij.psi.PsiFile;
-import com.intellij.psi.PsiFileFactory;
-import com.intellij.psi.PsiIdentifier;
 import com.intellij.psi.PsiMethod;
-import com.intellij.psi.util.PsiTreeUtil;
-import org.apache.commons.lang3.StringUtils;
-import org.jetbrains.annotations.NotNull;
-import org.jetbrains.annotations.Nullable;
+import com.intellij.psi.tree.IElementType;
 import org.jetbrains.research.anticopypaster.metrics.features.Feature;
-import org.jetbrains.research.anticopypaster.metrics.features.FeatureItem;
+import org.jetbrains.research.anticopypaster.metrics.features.FeatureGroup;
 import org.jetbrains.research.anticopypaster.metrics.features.FeaturesVector;
+import org.jetbrains.research.anticopypaster.metrics.utils.DepthAnalyzer;
+import org.jetbrains.research.anticopypaster.metrics.utils.LineTable;
 import org.jetbrains.research.anticopypaster.metrics.utils.MemberSets;
 
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.*;
 
-import static org.jetbrains.research.anticopypaster.metrics.utils.DepthAnalyzer.getNestingArea;
-
 public class MetricCalculator {
-    private final String statementsStr;
+    /**
+     * Version of the computation of the features. Must be bumped whenever the same code
+     * is measured differently, so that vectors persisted by {@link FeaturesVectorCache} are dropped.
+     * Adding, removing or renumbering features is detected without it.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * Keywords in the order of their features, 31 keywords with ids from 16 to 77.
+     */
+    private static final IElementType[] KEYWORDS = {
+            JavaTokenType.CONTINUE_KEYWORD, JavaTokenType.FOR_KEYWORD, JavaTokenType.NEW_KEYWORD, JavaTokenType.SWITCH_KEYWORD,
+            JavaTokenType.ASSERT_KEYWORD, JavaTokenType.SYNCHRONIZED_KEYWORD, JavaTokenType.BOOLEAN_KEYWORD, JavaTokenType.DO_KEYWORD,
+            JavaTokenType.IF_KEYWORD, JavaTokenType.THIS_KEYWORD, JavaTokenType.BREAK_KEYWORD, JavaTokenType.DOUBLE_KEYWORD,
+            JavaTokenType.THROW_KEYWORD, JavaTokenType.BYTE_KEYWORD, JavaTokenType.ELSE_KEYWORD, JavaTokenType.CASE_KEYWORD,
+            JavaTokenType.INSTANCEOF_KEYWORD, JavaTokenType.RETURN_KEYWORD, JavaTokenType.TRANSIENT_KEYWORD,
+            JavaTokenType.CATCH_KEYWORD, JavaTokenType.INT_KEYWORD, JavaTokenType.SHORT_KEYWORD, JavaTokenType.TRY_KEYWORD,
+            JavaTokenType.CHAR_KEYWORD, JavaTokenType.FINAL_KEYWORD, JavaTokenType.FINALLY_KEYWORD, JavaTokenType.LONG_KEYWORD,
+            JavaTokenType.STRICTFP_KEYWORD, JavaTokenType.FLOAT_KEYWORD, JavaTokenType.SUPER_KEYWORD, JavaTokenType.WHILE_KEYWORD
+    };
+    private static final Map<IElementType, Integer> KEYWORD_INDICES = new HashMap<>();
+    static {
+        for (int i = 0; i < KEYWORDS.length; i++)
+            KEYWORD_INDICES.put(KEYWORDS[i], i);
+    }
+
+    private final CharSequence statementsStr;
     private final PsiMethod method;
 
     private final int beginLine;
     private final int endLine;
     private final FeaturesVector featuresVector;
+    private final int[] keywordCounts = new int[KEYWORDS.length];
+    private final Set<String> identifierNames = new HashSet<>();
+    private final Set<FeatureGroup> requiredGroups = EnumSet.noneOf(FeatureGroup.class);
 
     public MetricCalculator(PsiMethod dummyPsiMethod, String code, int beginLine, int endLine) {
+        this(dummyPsiMethod, code, beginLine, endLine, EnumSet.allOf(Feature.class));
+    }
+
+    /**
+     * Computes only the groups of features that hold at least one of the required features.
+     * The vector keeps its full dimension; features of skipped groups are zero.
+     * @param requiredFeatures Features the consumer of the vector reads, see
+     *                         {@link org.jetbrains.research.anticopypaster.models.PredictionModel#requiredFeatures}
+     */
+    public MetricCalculator(PsiMethod dummyPsiMethod, String code, int beginLine, int endLine,
+                            Set<Feature> requiredFeatures) {
+        this(dummyPsiMethod, code, beginLine, endLine, requiredFeatures, null, 0);
+    }
+
+    private MetricCalculator(PsiMethod dummyPsiMethod, CharSequence code, int beginLine, int endLine,
+                             Set<Feature> requiredFeatures, FileTokens fileTokens, int codeOffset) {
         this.method = dummyPsiMethod;
         this.statementsStr = code;
         this.beginLine = beginLine;
         this.endLine = endLine;
-        this.featuresVector = new FeaturesVector(78); // TODO: Make dimension changeable outside
-        computeFeatureVector();
+        this.featuresVector = new FeaturesVector(Feature.values().length);
+        for (Feature feature : requiredFeatures)
+            requiredGroups.add(feature.getGroup());
+        if (fileTokens != null)
+            fileTokens.scan(codeOffset, codeOffset + code.length(), keywordCounts, identifierNames);
+        computeFeatureVector(fileTokens == null);
+    }
+
+    /**
+     * Computes the features of whole methods of one file. The text and line numbers of the
+     * file are looked up and the file is lexed once for all of them, rather than once per method.
+     * @param file File containing the methods
+     * @param methods Methods to measure
+     * @return The features of each method, in the order of the methods
+     */
+    public static List<FeaturesVector> calculateForFile(PsiFile file, List<PsiMethod> methods) {
+        List<FeaturesVector> result = new ArrayList<>(methods.size());
+        if (methods.isEmpty()) return result;
+        CharSequence text = file.getViewProvider().getContents();
+        LineTable lines = LineTable.forFile(file);
+        FileTokens tokens = new FileTokens(file, text);
+        Set<Feature> all = EnumSet.allOf(Feature.class);
+        for (PsiMethod method : methods) {
+            TextRange range = method.getTextRange();
+            result.add(new MetricCalculator(method, range.subSequence(text),
+                    lines.lineOf(range.getStartOffset()), lines.lineOf(range.getEndOffset()),
+                    all, tokens, range.getStartOffset()).getFeaturesVector());
+        }
+        return result;
     }
 
     public static void writeFeaturesToFile(PsiMethod dummyPsiMethod, String code,
@@ -43,16 +114,87 @@ public class MetricCalculator {
         FeaturesVector featuresVector = metricCalculator.getFeaturesVector();
 
         for (int i = 0; i < featuresVector.getDimension(); i++) {
-            fileWriter.append(String.valueOf(featuresVector.getFeatureValue(Feature.fromId(i))));
+            fileWriter.append(String.valueOf(featuresVector.getValue(i)));
             fileWriter.append(';');
         }
     }
 
-    private void computeFeatureVector() {
-        couplingFeatures();
-        keywordFeatures();
-        methodFeatures();
-        metaFeatures();
+    private void computeFeatureVector(boolean lex) {
+        if (lex && (requiredGroups.contains(FeatureGroup.COUPLING) || requiredGroups.contains(FeatureGroup.KEYWORD)))
+            scanTokens();
+        if (requiredGroups.contains(FeatureGroup.COUPLING))
+            couplingFeatures();
+        if (requiredGroups.contains(FeatureGroup.KEYWORD))
+            keywordFeatures();
+        if (requiredGroups.contains(FeatureGroup.METHOD))
+            methodFeatures();
+        if (requiredGroups.contains(FeatureGroup.META))
+            metaFeatures();
+    }
+
+    /**
+     * Lexes the fragment once, counting its keywords and collecting the names of its identifiers.
+     * Counting keyword tokens rather than substrings keeps "do" in "double" or "int" in "interface" out of the counts.
+     */
+    private void scanTokens() {
+        Lexer lexer = JavaParserDefinition.createLexer(com.intellij.psi.util.PsiUtil.getLanguageLevel(method));
+        lexer.start(statementsStr);
+        for (IElementType type; (type = lexer.getTokenType()) != null; lexer.advance()) {
+            if (type == JavaTokenType.IDENTIFIER) {
+                identifierNames.add(lexer.getTokenText());
+                continue;
+            }
+            Integer index = KEYWORD_INDICES.get(type);
+            if (index != null) keywordCounts[index]++;
+        }
+    }
+
+    /**
+     * Keyword and identifier tokens of a whole file, in the order they appear.
+     */
+    private static final class FileTokens {
+        private static final int IDENTIFIER = -1;
+
+        private final CharSequence text;
+        private int size;
+        private int[] starts = new int[256];
+        private int[] ends = new int[256];
+        /**
+         * Index of the keyword in {@link #KEYWORDS}, or {@link #IDENTIFIER}.
+         */
+        private int[] kinds = new int[256];
+
+        FileTokens(PsiFile file, CharSequence text) {
+            this.text = text;
+            Lexer lexer = JavaParserDefinition.createLexer(com.intellij.psi.util.PsiUtil.getLanguageLevel(file));
+            lexer.start(text);
+            for (IElementType type; (type = lexer.getTokenType()) != null; lexer.advance()) {
+                Integer index = type == JavaTokenType.IDENTIFIER ? Integer.valueOf(IDENTIFIER) : KEYWORD_INDICES.get(type);
+                if (index == null) continue;
+                if (size == starts.length) {
+                    starts = Arrays.copyOf(starts, size * 2);
+                    ends = Arrays.copyOf(ends, size * 2);
+                    kinds = Arrays.copyOf(kinds, size * 2);
+                }
+                starts[size] = lexer.getTokenStart();
+                ends[size] = lexer.getTokenEnd();
+                kinds[size] = index;
+                size++;
+            }
+        }
+
+        /**
+         * Counts the keywords and collects the identifiers within a range of the file.
+         */
+        void scan(int from, int to, int[] keywordCounts, Set<String> identifierNames) {
+            int index = Arrays.binarySearch(starts, 0, size, from);
+            for (int i = index >= 0 ? index : -index - 1; i < size && ends[i] <= to; i++) {
+                if (kinds[i] == IDENTIFIER)
+                    identifierNames.add(text.subSequence(starts[i], ends[i]).toString());
+                else
+                    keywordCounts[kinds[i]]++;
+            }
+        }
     }
 
     public FeaturesVector getFeaturesVector() {
@@ -61,7 +203,7 @@ public class MetricCalculator {
 
     private void couplingFeatures() {
         PsiFile thisFile = method.getContainingFile();
-        MemberSets memberSets = MemberSets.extractAllMethodsAndFields(thisFile);
+        MemberSets memberSets = MemberSets.forFile(thisFile);
 
         int linesCount = endLine - beginLine + 1;
 
@@ -69,92 +211,60 @@ public class MetricCalculator {
         int methodMatches = 0;
         int totalMatches;
 
-        PsiFileFactory factory = PsiFileFactory.getInstance(thisFile.getProject());
-        @Nullable PsiFile psiFromText = factory.createFileFromText(statementsStr, thisFile);
-        // search for all identifiers (methods and variables) in the code fragment
-        @NotNull Collection<PsiIdentifier> identifiers = PsiTreeUtil.collectElementsOfType(psiFromText,
-                PsiIdentifier.class);
-        HashSet<String> identifiersNames = new HashSet<>();
-        identifiers.forEach(i -> identifiersNames.add(i.getText()));
-
         for (String fieldName : memberSets.fields) {
-            if (identifiersNames.contains(fieldName)) {
+            if (identifierNames.contains(fieldName)) {
                 fieldMatches += 1;
             }
         }
 
         for (String methodName : memberSets.methods) {
-            if (identifiersNames.contains(methodName)) {
+            if (identifierNames.contains(methodName)) {
                 methodMatches += 1;
             }
         }
 
         totalMatches = methodMatches + fieldMatches;
 
-        featuresVector.setFeature(new FeatureItem(Feature.TotalConnectivity, totalMatches));
-        featuresVector.setFeature(new FeatureItem(
-                Feature.TotalConnectivityPerLine, (double) totalMatches / linesCount));
-        featuresVector.setFeature(new FeatureItem(Feature.FieldConnectivity, fieldMatches));
-        featuresVector.setFeature(new FeatureItem(
-                Feature.FieldConnectivityPerLine, (double) fieldMatches / linesCount));
-        featuresVector.setFeature(new FeatureItem(Feature.MethodConnectivity, methodMatches));
-        featuresVector.setFeature(new FeatureItem(
-                Feature.MethodConnectivityPerLine, (double) methodMatches / linesCount));
+        featuresVector.setFeature(Feature.TotalConnectivity, totalMatches);
+        featuresVector.setFeature(Feature.TotalConnectivityPerLine, (double) totalMatches / linesCount);
+        featuresVector.setFeature(Feature.FieldConnectivity, fieldMatches);
+        featuresVector.setFeature(Feature.FieldConnectivityPerLine, (double) fieldMatches / linesCount);
+        featuresVector.setFeature(Feature.MethodConnectivity, methodMatches);
+        featuresVector.setFeature(Feature.MethodConnectivityPerLine, (double) methodMatches / linesCount);
     }
 
     private void keywordFeatures() {
-        List<String> allKeywords = Arrays.asList(
-                "continue", "for", "new", "switch",
-                "assert", "synchronized", "boolean", "do",
-                "if", "this", "break", "double",
-                "throw", "byte", "else", "case",
-                "instanceof", "return", "transient",
-                "catch", "int", "short", "try",
-                "char", "final", "finally", "long",
-                "strictfp", "float", "super", "while"); // 31 keywords, id from 20 to 81
-
-        HashMap<String, Integer> counts = new HashMap<>();
-        for (String key : allKeywords) {
-            counts.put(key, StringUtils.countMatches(this.statementsStr, key));
-        }
-
         int linesCount = endLine - beginLine + 1;
 
         int id = 16; // initialized with 16 to account for shift in Keyword-Features begin id.
-        for (String keyword : allKeywords) {
-            Integer count = counts.get(keyword);
-            featuresVector.setFeature(new FeatureItem(Feature.fromId(id++), count));
-            featuresVector.setFeature(new FeatureItem(Feature.fromId(id++), (double) count / linesCount));
+        for (int count : keywordCounts) {
+            featuresVector.setFeature(Feature.fromId(id++), count);
+            featuresVector.setFeature(Feature.fromId(id++), (double) count / linesCount);
         }
     }
 
     private void methodFeatures() {
-        String methodStr = this.method.getText();
-        int methodArea = getNestingArea(methodStr);
-        int lineCount = StringUtils.countMatches(methodStr, '\n') + 1;
-
-        featuresVector.setFeature(new FeatureItem(Feature.MethodDeclarationLines, lineCount));
-        featuresVector.setFeature(new FeatureItem(Feature.MethodDeclarationSymbols, methodStr.length()));
-        featuresVector.setFeature(new FeatureItem(
-                Feature.MethodDeclarationSymbolsPerLine, (double) methodStr.length() / lineCount));
-        featuresVector.setFeature(new FeatureItem(Feature.MethodDeclarationArea, methodArea));
-        featuresVector.setFeature(new FeatureItem(
-                Feature.MethodDeclarationAreaPerLine, (double) methodArea / lineCount));
+        // The node's characters are read in place, without copying the method's text into a string.
+        DepthAnalyzer.Nesting nesting = DepthAnalyzer.analyze(this.method.getNode().getChars());
+        int lineCount = nesting.lineCount();
+
+        featuresVector.setFeature(Feature.MethodDeclarationLines, lineCount);
+        featuresVector.setFeature(Feature.MethodDeclarationSymbols, nesting.symbolCount());
+        featuresVector.setFeature(Feature.MethodDeclarationSymbolsPerLine, (double) nesting.symbolCount() / lineCount);
+        featuresVector.setFeature(Feature.MethodDeclarationArea, nesting.area());
+        featuresVector.setFeature(Feature.MethodDeclarationAreaPerLine, (double) nesting.area() / lineCount);
 
     }
 
     private void metaFeatures() {
-        String fragment = statementsStr;
-        int fragmentArea = getNestingArea(fragment);
-        int lineCount = StringUtils.countMatches(fragment, '\n') + 1;
-
-        featuresVector.setFeature(new FeatureItem(Feature.TotalLinesOfCode, lineCount));
-        featuresVector.setFeature(new FeatureItem(Feature.TotalSymbols, fragment.length()));
-        featuresVector.setFeature(new FeatureItem(
-                Feature.SymbolsPerLine, (double) fragment.length() / lineCount));
-        featuresVector.setFeature(new FeatureItem(Feature.Area, fragmentArea));
-        featuresVector.setFeature(new FeatureItem(
-                Feature.AreaPerLine, (double) fragmentArea / lineCount));
+        DepthAnalyzer.Nesting nesting = DepthAnalyzer.analyze(statementsStr);
+        int lineCount = nesting.lineCount();
+
+        featuresVector.setFeature(Feature.TotalLinesOfCode, lineCount);
+        featuresVector.setFeature(Feature.TotalSymbols, nesting.symbolCount());
+        featuresVector.setFeature(Feature.SymbolsPerLine, (double) nesting.symbolCount() / lineCount);
+        featuresVector.setFeature(Feature.Area, nesting.area());
+        featuresVector.setFeature(Feature.AreaPerLine, (double) nesting.area() / lineCount);
 
     }
 }
\ No newline at end of file
@@ -135,5 +135,15 @@ public enum Feature {
     public int getId() {
         return id;
     }
+
+    /**
+     * Returns the group the feature is computed in.
+     */
+    public FeatureGroup getGroup() {
+        if (id < TotalConnectivity.id) return FeatureGroup.META;
+        if (id < MethodDeclarationLines.id) return FeatureGroup.COUPLING;
+        if (id < KeywordContinueTotalCount.id) return FeatureGroup.METHOD;
+        return FeatureGroup.KEYWORD;
+    }
 }
 
@@ -0,0 +1,12 @@
+package org.jetbrains.research.anticopypaster.metrics.features;
+
+/**
+ * Features computed together by {@link org.jetbrains.research.anticopypaster.metrics.MetricCalculator},
+ * which skips a group when none of its features are required.
+ */
+public enum FeatureGroup {
+    META,
+    COUPLING,
+    METHOD,
+    KEYWORD
+}
@@ -1,24 +1,39 @@
 package org.jetbrains.research.anticopypaster.metrics.features;
 
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * Values of the features of a code fragment, indexed by {@link Feature#getId()}.
+ * Every consumer reads them as floats, so they are stored as floats.
+ */
 public class FeaturesVector {
-    private final List<FeatureItem> features = new ArrayList<>();
+    private final float[] values;
     private final int dimension;
 
     /**
-     * Creates a vector of size `dimension` and fills it with pairs (`feature`;zero).
+     * Creates a vector of size `dimension` with every feature set to zero.
      */
     public FeaturesVector(int dimension) {
         this.dimension = dimension;
-        for (int i = 0; i < dimension; i++) {
-            features.add(new FeatureItem(Feature.fromId(i), 0));
-        }
+        this.values = new float[dimension];
+    }
+
+    /**
+     * Creates a vector holding the given values, which it takes ownership of.
+     */
+    public FeaturesVector(float[] values) {
+        this.dimension = values.length;
+        this.values = values;
     }
 
     public void setFeature(final FeatureItem item) {
-        features.set(item.getId(), item);
+        values[item.getId()] = (float) item.getValue();
+    }
+
+    public void setFeature(Feature feature, double value) {
+        values[feature.getId()] = (float) value;
     }
 
     public int getDimension() {
@@ -26,20 +41,44 @@ public class FeaturesVector {
     }
 
     public double getFeatureValue(Feature toSearch) {
-        return features.get(toSearch.getId()).getValue();
+        return values[toSearch.getId()];
+    }
+
+    /**
+     * Returns the value of the feature with the given id.
+     */
+    public float getValue(int index) {
+        return values[index];
     }
 
+    /**
+     * Returns a snapshot of the features as a new list of items, built on every call.
+     * Later changes to the vector don't show in the list, and changing the list or its
+     * items doesn't change the vector. Reading single values is better done with
+     * {@link #getFeatureValue} or {@link #asFloatBuffer}, which copy nothing.
+     */
     public List<FeatureItem> getItems() {
-        return features;
+        List<FeatureItem> result = new ArrayList<>(dimension);
+        for (int i = 0; i < dimension; i++) {
+            result.add(new FeatureItem(Feature.fromId(i), values[i]));
+        }
+        return result;
+    }
+
+    /**
+     * Returns a read-only buffer over the values, without copying them.
+     */
+    public FloatBuffer asFloatBuffer() {
+        return FloatBuffer.wrap(values).asReadOnlyBuffer();
     }
 
     /**
      * Returns List of floats, corresponding to computed features.
      */
     public List<Float> buildList() {
-        List<Float> result = new ArrayList<>();
+        List<Float> result = new ArrayList<>(dimension);
         for (int i = 0; i < dimension; ++i) {
-            result.add((float) features.get(i).getValue());
+            result.add(values[i]);
         }
         return result;
     }
@@ -48,14 +87,7 @@ public class FeaturesVector {
      * Returns Array of floats, corresponding to computed features.
      */
     public float[] buildArray() {
-        float[] floatArray = new float[dimension];
-
-        for (int i = 0; i < dimension; i++) {
-            float to_insert = (float) features.get(i).getValue();
-            floatArray[i] = to_insert;
-        }
-
-        return floatArray;
+        return values.clone();
     }
 
     /**
@@ -63,9 +95,9 @@ public class FeaturesVector {
      * indices of which are passed in `indexList`.
      */
     public List<Float> buildCroppedVector(List<Integer> indexList) {
-        List<Float> result = new ArrayList<>();
+        List<Float> result = new ArrayList<>(indexList.size());
         for (int i : indexList) {
-            result.add((float) features.get(i).getValue());
+            result.add(values[i]);
         }
         return result;
     }
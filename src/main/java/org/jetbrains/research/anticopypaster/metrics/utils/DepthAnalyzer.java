@@ -4,6 +4,70 @@ package org.jetbrains.research.anticopypaster.metrics.utils;
  * Utility class for computing depth-metrics of passed code
  */
 public class DepthAnalyzer {
+    /**
+     * Depth-metrics and size of a piece of code, computed together by {@link #analyze}.
+     * @param area Line-wise sum of nesting levels
+     * @param depth Line-wise maximum of nesting levels
+     * @param lineCount Number of lines, one more than the number of line breaks
+     * @param symbolCount Number of characters
+     */
+    public record Nesting(int area, int depth, int lineCount, int symbolCount) {
+    }
+
+    /**
+     * Computes every depth-metric of the given code in a single pass, without splitting it into lines.
+     * Nesting levels are the same as those of {@link #getNestingDepths}.
+     */
+    public static Nesting analyze(CharSequence code) {
+        int area = 0;
+        int depth = 0;
+        int lineCount = 1;
+        int currentDepth = 0;
+        // State of the current line: closing braces before its first opening brace, and opening braces.
+        int closes = 0;
+        int opens = 0;
+        boolean opened = false;
+        boolean emptyLine = true;
+        // Empty lines only count once a non-empty line follows, as String.split drops trailing empty lines.
+        int pendingArea = 0;
+        boolean pending = false;
+        int length = code.length();
+        for (int i = 0; i <= length; i++) {
+            char c = i < length ? code.charAt(i) : '\n';
+            if (c != '\n') {
+                emptyLine = false;
+                if (c == '{') {
+                    opened = true;
+                    opens++;
+                } else if (c == '}' && !opened) {
+                    closes++;
+                }
+                continue;
+            }
+            if (i < length) lineCount++;
+            if (emptyLine) {
+                pendingArea += currentDepth;
+                pending = true;
+                continue;
+            }
+            if (pending) {
+                area += pendingArea;
+                depth = Math.max(depth, currentDepth);
+                pendingArea = 0;
+                pending = false;
+            }
+            currentDepth = Math.max(currentDepth - closes, 0);
+            area += currentDepth;
+            depth = Math.max(depth, currentDepth);
+            currentDepth += opens;
+            closes = 0;
+            opens = 0;
+            opened = false;
+            emptyLine = true;
+        }
+        return new Nesting(area, depth, lineCount, length);
+    }
+
     /**
      * Generates and returns array of integers, representing the nesting level of each line
      */
@@ -35,19 +99,13 @@ public class DepthAnalyzer {
      * Computes nesting area (i.e. line-wise sum of nesting levels) of the given code
      */
     public static int getNestingArea(String code) {
-        int area = 0;
-        for (int value : getNestingDepths(code))
-            area += value;
-        return area;
+        return analyze(code).area();
     }
 
     /**
      * Computes nesting depth (i.e. line-wise maximum of nesting levels) of the given code
      */
     public static int getNestingDepth(String code) {
-        int depth = 0;
-        for (int value : getNestingDepths(code))
-            depth = Math.max(value, depth);
-        return depth;
+        return analyze(code).depth();
     }
 }
@@ -0,0 +1,44 @@
+package org.jetbrains.research.anticopypaster.metrics.utils;
+
+import com.intellij.openapi.util.Key;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.util.CachedValue;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
+
+import java.util.Arrays;
+
+/**
+ * Offsets at which the lines of a file's text start, to look up line numbers by binary search.
+ */
+public class LineTable {
+    private static final Key<CachedValue<LineTable>> KEY = Key.create("anticopypaster.lineTable");
+
+    private final int[] lineStarts;
+
+    public LineTable(CharSequence text) {
+        int count = 1;
+        for (int i = 0; i < text.length(); i++)
+            if (text.charAt(i) == '\n') count++;
+        lineStarts = new int[count];
+        int line = 1;
+        for (int i = 0; i < text.length(); i++)
+            if (text.charAt(i) == '\n') lineStarts[line++] = i + 1;
+    }
+
+    /**
+     * Gets the table of the given file, building it if the file changed since the last lookup.
+     */
+    public static LineTable forFile(PsiFile file) {
+        return CachedValuesManager.getCachedValue(file, KEY,
+                () -> CachedValueProvider.Result.create(new LineTable(file.getViewProvider().getContents()), file));
+    }
+
+    /**
+     * Finds the line of an offset, numbered from 1 like {@link org.jetbrains.research.anticopypaster.utils.PsiUtil#getNumberOfLine}.
+     */
+    public int lineOf(int offset) {
+        int index = Arrays.binarySearch(lineStarts, offset);
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+}
@@ -1,15 +1,86 @@
 package org.jetbrains.research.anticopypaster.metrics.utils;
 
+import com.intellij.openapi.util.Key;
+import com.intellij.psi.JavaRecursiveElementWalkingVisitor;
+import com.intellij.psi.PsiClass;
+import com.intellij.psi.PsiClassOwner;
 import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiField;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiMethod;
 import com.intellij.psi.PsiRecursiveElementVisitor;
+import com.intellij.psi.util.CachedValue;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
+import com.intellij.util.io.DigestUtil;
 import org.jetbrains.annotations.NotNull;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.TreeSet;
 
 public class MemberSets {
+    private static final Key<CachedValue<MemberSets>> KEY = Key.create("anticopypaster.memberSets");
+
     public Set<String> methods = new HashSet<>();
     public Set<String> fields = new HashSet<>();
+    private byte[] digest;
+
+    /**
+     * Gets the names of the methods and fields declared in a file. The sets are
+     * computed once and shared until the file changes, so they must not be modified.
+     * @param file File to extract members from
+     * @return The member names of the file
+     */
+    public static MemberSets forFile(PsiFile file) {
+        return CachedValuesManager.getCachedValue(file, KEY,
+                () -> CachedValueProvider.Result.create(file instanceof PsiClassOwner owner
+                        ? extractDeclaredMembers(owner) : extractAllMethodsAndFields(file), file));
+    }
+
+    /**
+     * Collects the names of the methods and fields of the classes of a file, including
+     * nested, local and anonymous classes. Each class contributes its own declarations,
+     * so other elements are only walked through to reach the classes inside them.
+     */
+    public static MemberSets extractDeclaredMembers(PsiClassOwner file) {
+        final MemberSets result = new MemberSets();
+        for (PsiClass psiClass : file.getClasses()) {
+            psiClass.accept(new JavaRecursiveElementWalkingVisitor() {
+                @Override
+                public void visitClass(@NotNull PsiClass aClass) {
+                    for (PsiMethod method : aClass.getMethods())
+                        result.methods.add(method.getName());
+                    for (PsiField field : aClass.getFields())
+                        result.fields.add(field.getName());
+                    super.visitClass(aClass);
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * Hashes the member names, which is the same for any two sets of the same names.
+     * The hash is computed once, so the sets must not be modified afterwards.
+     */
+    public synchronized byte[] digest() {
+        if (digest == null) {
+            MessageDigest md = DigestUtil.sha256();
+            for (Set<String> names : List.of(methods, fields)) {
+                for (String name : new TreeSet<>(names)) {
+                    md.update(name.getBytes(StandardCharsets.UTF_8));
+                    md.update((byte) 0);
+                }
+                md.update((byte) 1);
+            }
+            digest = md.digest();
+        }
+        return digest;
+    }
 
     public static MemberSets extractAllMethodsAndFields(PsiElement root) {
         final MemberSets result = new MemberSets();
@@ -18,15 +89,12 @@ public class MemberSets {
             public void visitElement(@NotNull PsiElement element) {
                 super.visitElement(element);
 
-                String[] elementSplit = element.toString().split(":");
-                if (elementSplit[0].equals("PsiMethod")) {
-                    String methodName = elementSplit[1];
-                    result.methods.add(methodName);
+                if (element instanceof PsiMethod method) {
+                    result.methods.add(method.getName());
                 }
 
-                if (elementSplit[0].equals("PsiField")) {
-                    String fieldName = elementSplit[1];
-                    result.fields.add(fieldName);
+                if (element instanceof PsiField field) {
+                    result.fields.add(field.getName());
                 }
 
             }
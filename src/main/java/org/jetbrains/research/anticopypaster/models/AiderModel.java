@@ -2,8 +2,12 @@ package org.jetbrains.research.anticopypaster.models;
 
 import com.intellij.openapi.project.Project;
 import com.intellij.psi.PsiFile;
+import org.jetbrains.research.anticopypaster.metrics.features.Feature;
 import org.jetbrains.research.anticopypaster.metrics.features.FeaturesVector;
 
+import java.util.EnumSet;
+import java.util.Set;
+
 public class AiderModel extends PredictionModel {
     private final Project project;
     private final PsiFile file;
@@ -19,4 +23,9 @@ public class AiderModel extends PredictionModel {
         // Always return 1.0f to indicate "recommend refactor" regardless of detection result for now
         return 1.0f;
     }
+
+    @Override
+    public Set<Feature> requiredFeatures() {
+        return EnumSet.noneOf(Feature.class);
+    }
 }
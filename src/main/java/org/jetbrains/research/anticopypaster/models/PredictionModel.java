@@ -1,7 +1,28 @@
 package org.jetbrains.research.anticopypaster.models;
 
+import org.jetbrains.research.anticopypaster.metrics.features.Feature;
 import org.jetbrains.research.anticopypaster.metrics.features.FeaturesVector;
 
+import java.util.EnumSet;
+import java.util.Set;
+
 public abstract class PredictionModel {
     public abstract float predict(FeaturesVector featuresVector);
+
+    /**
+     * Returns the features {@link #predict} reads, so that the others don't have to be computed.
+     * Every feature by default.
+     */
+    public Set<Feature> requiredFeatures() {
+        return EnumSet.allOf(Feature.class);
+    }
+
+    /**
+     * Returns the model to handle a single event with, whose {@link #requiredFeatures} and
+     * {@link #predict} agree with each other even if this model changes in between.
+     * The model itself by default, for models that never change.
+     */
+    public PredictionModel snapshot() {
+        return this;
+    }
 }
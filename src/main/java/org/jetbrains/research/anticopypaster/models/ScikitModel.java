@@ -1,10 +1,13 @@
 package org.jetbrains.research.anticopypaster.models;
 
+import org.jetbrains.research.anticopypaster.metrics.features.Feature;
 import org.jetbrains.research.anticopypaster.metrics.features.FeaturesVector;
 import org.pmml4s.model.Model;
 
 import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Attributes:
@@ -27,4 +30,12 @@ public class ScikitModel extends PredictionModel {
         Double positive_proba = (Double) result[1];
         return positive_proba.floatValue();
     }
+
+    @Override
+    public Set<Feature> requiredFeatures() {
+        Set<Feature> result = EnumSet.noneOf(Feature.class);
+        for (int id : leftFeatures)
+            result.add(Feature.fromId(id));
+        return result;
+    }
 }
\ No newline at end of file
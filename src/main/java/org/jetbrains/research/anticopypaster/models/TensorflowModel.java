@@ -50,9 +50,7 @@ public class TensorflowModel extends PredictionModel {
     public float predict(FeaturesVector featuresVector) {
         // create the session from the Bundle
         Session session = modelBundle.session();
-        float[] featuresArray = featuresVector.buildArray();
-
-        FloatBuffer floatBuffer = FloatBuffer.wrap(featuresArray);
+        FloatBuffer floatBuffer = featuresVector.asFloatBuffer();
 
         long[] shape = new long[]{1, 78, 1};
 
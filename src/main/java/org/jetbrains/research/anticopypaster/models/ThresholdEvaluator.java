@@ -0,0 +1,127 @@
+package org.jetbrains.research.anticopypaster.models;
+
+import org.jetbrains.research.anticopypaster.config.ProjectSettingsState;
+import org.jetbrains.research.anticopypaster.metrics.features.Feature;
+import org.jetbrains.research.anticopypaster.metrics.features.FeaturesVector;
+import org.jetbrains.research.anticopypaster.utils.Flag;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The decision of {@link UserSettingsModel}, compiled from its flags and the settings
+ * they were read under: feature ids, thresholds and required metrics of every category
+ * as primitive arrays and bitmasks. Evaluating a vector reads nothing else and allocates nothing.
+ * The evaluator is immutable; it is compiled again whenever the flags or the settings change,
+ * which {@link #isCompiledUnder} tells however the settings were written.
+ */
+final class ThresholdEvaluator {
+    private static final int SIZE = 0;
+    private static final int COMPLEXITY = 1;
+    private static final int KEYWORDS = 2;
+    private static final int COUPLING = 3;
+    private static final int CATEGORIES = 4;
+
+    /** Bit {@code c} is set if category {@code c} is enabled, respectively required. */
+    private final int enabledCategories;
+    private final int requiredCategories;
+    /** Ids of the selected features of each category. */
+    private final int[][] featureIds;
+    private final float[][] thresholds;
+    /** Bit {@code i} is set if the {@code i}-th selected feature of the category is required. */
+    private final long[] requiredMetrics;
+    /** Features selected by the enabled categories. */
+    private final Set<Feature> requiredFeatures;
+    /** The settings read, as of before the flags were set up. */
+    private final long[] settingsStamp;
+
+    private ThresholdEvaluator(ProjectSettingsState settings, long[] settingsStamp, Flag[] flags) {
+        this.settingsStamp = settingsStamp;
+        this.enabledCategories = maskOf(settings.sizeEnabled, settings.complexityEnabled,
+                settings.keywordsEnabled, settings.couplingEnabled);
+        this.requiredCategories = maskOf(settings.sizeRequired, settings.complexityRequired,
+                settings.keywordsRequired, settings.couplingRequired);
+        this.featureIds = new int[CATEGORIES][];
+        this.thresholds = new float[CATEGORIES][];
+        this.requiredMetrics = new long[CATEGORIES];
+        Set<Feature> features = EnumSet.noneOf(Feature.class);
+        for (int c = 0; c < CATEGORIES; c++) {
+            List<Feature> selected = flags[c].getSelectedMetrics();
+            if (selected.size() > Long.SIZE)
+                throw new IllegalStateException("A category may select at most " + Long.SIZE + " metrics");
+            featureIds[c] = new int[selected.size()];
+            for (int i = 0; i < selected.size(); i++) {
+                featureIds[c][i] = selected.get(i).getId();
+                if (flags[c].getRequiredMetrics().contains(selected.get(i)))
+                    requiredMetrics[c] |= 1L << i;
+            }
+            thresholds[c] = flags[c].getThresholds().clone();
+            if ((enabledCategories & (1 << c)) != 0)
+                features.addAll(selected);
+        }
+        this.requiredFeatures = Collections.unmodifiableSet(features);
+    }
+
+    /**
+     * Compiles the flags of each category under the current settings.
+     * @param settingsStamp {@link ProjectSettingsState#userModelStamp} taken before the flags were set up
+     */
+    static ThresholdEvaluator compile(ProjectSettingsState settings, long[] settingsStamp,
+                                      Flag size, Flag complexity, Flag keywords, Flag coupling) {
+        return new ThresholdEvaluator(settings, settingsStamp, new Flag[]{size, complexity, keywords, coupling});
+    }
+
+    /**
+     * Returns whether the settings this evaluator reads are still those it was compiled under.
+     */
+    boolean isCompiledUnder(ProjectSettingsState settings) {
+        return Arrays.equals(settingsStamp, settings.userModelStamp());
+    }
+
+    /**
+     * Returns the features read by {@link #shouldNotify}: those selected by the enabled categories.
+     */
+    Set<Feature> requiredFeatures() {
+        return requiredFeatures;
+    }
+
+    /**
+     * Returns whether the fragment should be suggested for extraction: at least one
+     * enabled category is triggered, and so is every required one.
+     */
+    boolean shouldNotify(FeaturesVector featuresVector) {
+        int triggered = 0;
+        for (int c = 0; c < CATEGORIES; c++) {
+            if ((enabledCategories & (1 << c)) != 0 && isTriggered(c, featuresVector))
+                triggered |= 1 << c;
+        }
+        return triggered != 0 && (requiredCategories & ~triggered) == 0;
+    }
+
+    /**
+     * Same decision as {@link Flag#isFlagTriggered}: at least one metric exceeds
+     * its threshold and no required metric doesn't. Missing vectors measure 0.
+     */
+    private boolean isTriggered(int category, FeaturesVector featuresVector) {
+        int[] ids = featureIds[category];
+        float[] categoryThresholds = thresholds[category];
+        long required = requiredMetrics[category];
+        boolean tripped = false;
+        for (int i = 0; i < ids.length; i++) {
+            float value = featuresVector == null ? 0 : featuresVector.getValue(ids[i]);
+            if (value > categoryThresholds[i])
+                tripped = true;
+            else if ((required & (1L << i)) != 0)
+                return false;
+        }
+        return tripped;
+    }
+
+    private static int maskOf(boolean size, boolean complexity, boolean keywords, boolean coupling) {
+        return (size ? 1 << SIZE : 0) | (complexity ? 1 << COMPLEXITY : 0)
+                | (keywords ? 1 << KEYWORDS : 0) | (coupling ? 1 << COUPLING : 0);
+    }
+}
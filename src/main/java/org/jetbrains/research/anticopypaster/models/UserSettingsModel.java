@@ -1,24 +1,65 @@
 package org.jetbrains.research.anticopypaster.models;
 
+import com.intellij.openapi.Disposable;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.util.messages.MessageBusConnection;
 import org.jetbrains.research.anticopypaster.config.ProjectSettingsState;
+import org.jetbrains.research.anticopypaster.metrics.features.Feature;
 import org.jetbrains.research.anticopypaster.metrics.features.FeaturesVector;
 import org.jetbrains.research.anticopypaster.utils.*;
 
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
 
 
-public class UserSettingsModel extends PredictionModel{
+public class UserSettingsModel extends PredictionModel
+        implements Disposable, ProjectSettingsState.SettingsListener, ProjectMetricsStore.Listener {
 
-    private Flag keywordsMetrics;
-    private Flag sizeMetrics;
-    private Flag complexityMetrics;
-    private Flag couplingMetrics;
+    private volatile Flag keywordsMetrics;
+    private volatile Flag sizeMetrics;
+    private volatile Flag complexityMetrics;
+    private volatile Flag couplingMetrics;
     private Project project;
+    /**
+     * Metrics of the gatherer the flags are set up from, or null to read them from the {@link ProjectMetricsStore}.
+     */
+    private List<FeaturesVector> gatheredMetrics;
+    private boolean gatheredSampled;
+    /**
+     * The flags compiled under the current settings, or null until the metrics are gathered.
+     * It is replaced whenever the settings or the metrics change, so predictions mostly only read it.
+     */
+    private volatile ThresholdEvaluator evaluator;
+
+    /**
+     * Builds a model over the project's shared metrics, starting to gather them
+     * if no model did before. The flags are set up from them as soon as they are
+     * gathered, so switching to this model is instant once they are, and set up
+     * again whenever they or the settings change.
+     * Until then the model predicts 0. The model lives until disposed or the store is.
+     */
+    public UserSettingsModel(Project project) {
+        this.project = project;
+        ProjectMetricsStore store = ProjectMetricsStore.getInstance(project);
+        Disposer.register(store, this);
+        MessageBusConnection connection = project.getMessageBus().connect(this);
+        connection.subscribe(ProjectSettingsState.SETTINGS_CHANGED, this);
+        connection.subscribe(ProjectMetricsStore.METRICS_CHANGED, this);
+        // The store may have been filled before the subscription.
+        rebuild();
+        store.ensureGathered();
+    }
 
+    /**
+     * The flags are set up once the given gatherer has published its metrics,
+     * and set up again from them by {@link #settingsChanged}.
+     * Until then the model predicts 0.
+     */
     public UserSettingsModel(MetricsGatherer mg, Project project) {
         this.project = project;
-        initMetricsGathererAndMetricsFlags(mg);
+        mg.whenGathered(() -> initMetricsGathererAndMetricsFlags(mg));
     }
 
     /**
@@ -29,12 +70,64 @@ public class UserSettingsModel extends PredictionModel{
      */
     public void initMetricsGathererAndMetricsFlags(MetricsGatherer mg) {
         mg.setProject(project);
+        synchronized (this) {
+            gatheredMetrics = mg.getMethodsMetrics();
+            gatheredSampled = mg.isSampled();
+        }
+        rebuild();
+    }
+
+    @Override
+    public void settingsChanged() {
+        rebuild();
+    }
+
+    @Override
+    public void metricsChanged() {
+        rebuild();
+    }
+
+    /**
+     * Sets the flags up from the metrics under the current settings, and compiles them.
+     * Flags over the project's metrics read the distributions the store keeps up to date,
+     * rather than the metrics of every method.
+     */
+    private synchronized void rebuild() {
+        ProjectSettingsState settings = ProjectSettingsState.getInstance(project);
+        // Taken first, so that settings written while the flags are set up are caught by the next prediction.
+        long[] settingsStamp = settings.userModelStamp();
+        Flag[] flags;
+        if (gatheredMetrics != null) {
+            flags = createFlags(gatheredMetrics, gatheredSampled);
+        } else {
+            ProjectMetricsStore store = ProjectMetricsStore.getInstance(project);
+            if (store == null || !store.isLoaded()) return;
+            flags = createFlags(null, store.isSampled());
+            for (Flag flag : flags)
+                flag.useSketches(store::getSketch);
+        }
+        this.keywordsMetrics = flags[0];
+        this.complexityMetrics = flags[1];
+        this.sizeMetrics = flags[2];
+        this.couplingMetrics = flags[3];
+        evaluator = ThresholdEvaluator.compile(settings, settingsStamp,
+                sizeMetrics, complexityMetrics, keywordsMetrics, couplingMetrics);
+    }
 
-        List<FeaturesVector> methodMetrics = mg.getMethodsMetrics();
-        this.keywordsMetrics = new KeywordsMetrics(methodMetrics, project);
-        this.complexityMetrics = new ComplexityMetrics(methodMetrics, project);
-        this.sizeMetrics = new SizeMetrics(methodMetrics, project);
-        this.couplingMetrics = new CouplingMetrics(methodMetrics, project);
+    /**
+     * Creates the flags of each category, in the order keywords, complexity, size, coupling.
+     * @param sampled Whether the metrics are only a sample of the project's methods
+     */
+    private Flag[] createFlags(List<FeaturesVector> methodMetrics, boolean sampled) {
+        Flag[] flags = {
+                new KeywordsMetrics(methodMetrics, project),
+                new ComplexityMetrics(methodMetrics, project),
+                new SizeMetrics(methodMetrics, project),
+                new CouplingMetrics(methodMetrics, project)
+        };
+        for (Flag flag : flags)
+            flag.setSampled(sampled);
+        return flags;
     }
 
     /**
@@ -45,29 +138,56 @@ public class UserSettingsModel extends PredictionModel{
      */
     @Override
     public float predict(FeaturesVector featuresVector) {
-        if (sizeMetrics == null || complexityMetrics == null || keywordsMetrics == null || couplingMetrics == null)
-            return 0;
+        return snapshot().predict(featuresVector);
+    }
 
-        ProjectSettingsState settings = ProjectSettingsState.getInstance(project);
+    /**
+     * Only the metrics selected for the enabled categories are read.
+     */
+    @Override
+    public Set<Feature> requiredFeatures() {
+        return snapshot().requiredFeatures();
+    }
+
+    /**
+     * Pins the evaluator compiled at this point, so that a vector computed for its
+     * required features is also scored by it, even if the flags are set up again meanwhile.
+     * Settings written without a {@link ProjectSettingsState#SETTINGS_CHANGED} notification,
+     * such as loaded or synced ones, are caught here and compile a new evaluator first.
+     */
+    @Override
+    public PredictionModel snapshot() {
+        ThresholdEvaluator current = evaluator;
+        if (current != null && !current.isCompiledUnder(ProjectSettingsState.getInstance(project))) {
+            rebuild();
+            current = evaluator;
+        }
+        return new Compiled(current);
+    }
+
+    /**
+     * Predictions of a single evaluator, or of none if the metrics weren't gathered yet.
+     */
+    private static final class Compiled extends PredictionModel {
+        private final ThresholdEvaluator evaluator;
 
-        boolean sizeTriggered = settings.sizeEnabled && sizeMetrics.isFlagTriggered(featuresVector);
-        boolean complexityTriggered = settings.complexityEnabled && complexityMetrics.isFlagTriggered(featuresVector);
-        boolean keywordsTriggered = settings.keywordsEnabled && keywordsMetrics.isFlagTriggered(featuresVector);
-        boolean couplingTriggered = settings.couplingEnabled && couplingMetrics.isFlagTriggered(featuresVector);
-
-        boolean shouldNotify = sizeTriggered || complexityTriggered || keywordsTriggered || couplingTriggered;
-        if (shouldNotify) {
-            if (!sizeTriggered && settings.sizeRequired)
-                shouldNotify = false;
-            else if (!complexityTriggered && settings.complexityRequired)
-                shouldNotify = false;
-            else if (!keywordsTriggered && settings.keywordsRequired)
-                shouldNotify = false;
-            else if (!couplingTriggered && settings.couplingRequired)
-                shouldNotify = false;
+        Compiled(ThresholdEvaluator evaluator) {
+            this.evaluator = evaluator;
         }
 
-        return shouldNotify ? 1 : 0;
+        @Override
+        public float predict(FeaturesVector featuresVector) {
+            if (evaluator == null)
+                return 0;
+            return evaluator.shouldNotify(featuresVector) ? 1 : 0;
+        }
+
+        @Override
+        public Set<Feature> requiredFeatures() {
+            if (evaluator == null)
+                return EnumSet.noneOf(Feature.class);
+            return evaluator.requiredFeatures();
+        }
     }
 
     /**
@@ -96,4 +216,9 @@ public class UserSettingsModel extends PredictionModel{
     public void setProject(Project project) {
         this.project = project;
     }
+
+    @Override
+    public void dispose() {
+        evaluator = null;
+    }
 }
@@ -0,0 +1,120 @@
+package org.jetbrains.research.anticopypaster.utils;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileDeleteEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.psi.*;
+import com.intellij.util.Alarm;
+import com.intellij.util.ui.update.MergingUpdateQueue;
+import com.intellij.util.ui.update.Update;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * Reports the changes to the files of a project to a listener as they happen, both
+ * edits of their PSI and changes to whole files, and lets the listener schedule
+ * an update that runs on a pooled thread shortly after the first change of a burst.
+ * Changes arriving in the meantime are merged into the same update.
+ */
+public final class ChangedFilesQueue {
+    /**
+     * Receives the changes. Change callbacks run on the thread making the change, so they only take note of it.
+     */
+    public interface Listener {
+        /**
+         * Called on every edit of the PSI of a file.
+         * @param file The edited file
+         * @param parent Element whose children changed, or null if unknown
+         */
+        default void psiChanged(@NotNull VirtualFile file, @Nullable PsiElement parent) {
+        }
+
+        /**
+         * Called after a file or directory was deleted.
+         */
+        default void fileDeleted(@NotNull VirtualFile file) {
+        }
+
+        /**
+         * Called after a file was created, copied, moved or changed outside the IDE.
+         */
+        default void fileChanged(@NotNull VirtualFile file) {
+        }
+
+        /**
+         * Applies the changes noted since the last update, on a pooled thread.
+         */
+        void update();
+    }
+
+    private final MergingUpdateQueue queue;
+    private final Listener listener;
+
+    /**
+     * Starts listening to the changes of a project until the parent is disposed.
+     * @param name Name of the queue the updates run on
+     * @param mergingTimeSpanMs Longest time a change waits before its update runs
+     */
+    public ChangedFilesQueue(Project project, String name, int mergingTimeSpanMs, Disposable parent, Listener listener) {
+        this.listener = listener;
+        queue = new MergingUpdateQueue(name, mergingTimeSpanMs, true,
+                MergingUpdateQueue.ANY_COMPONENT, parent, null, Alarm.ThreadToUse.POOLED_THREAD);
+        PsiManager.getInstance(project).addPsiTreeChangeListener(new PsiTreeChangeAdapter() {
+            @Override
+            public void childAdded(@NotNull PsiTreeChangeEvent event) {
+                changed(event);
+            }
+
+            @Override
+            public void childRemoved(@NotNull PsiTreeChangeEvent event) {
+                changed(event);
+            }
+
+            @Override
+            public void childReplaced(@NotNull PsiTreeChangeEvent event) {
+                changed(event);
+            }
+
+            @Override
+            public void childMoved(@NotNull PsiTreeChangeEvent event) {
+                changed(event);
+            }
+
+            @Override
+            public void childrenChanged(@NotNull PsiTreeChangeEvent event) {
+                changed(event);
+            }
+        }, parent);
+        project.getMessageBus().connect(parent).subscribe(VirtualFileManager.VFS_CHANGES, new BulkFileListener() {
+            @Override
+            public void after(@NotNull List<? extends VFileEvent> events) {
+                for (VFileEvent event : events) {
+                    if (event instanceof VFileDeleteEvent delete)
+                        listener.fileDeleted(delete.getFile());
+                    else if (event.getFile() != null)
+                        listener.fileChanged(event.getFile());
+                }
+            }
+        });
+    }
+
+    private void changed(PsiTreeChangeEvent event) {
+        PsiFile file = event.getFile();
+        VirtualFile vFile = file == null ? null : file.getVirtualFile();
+        // Files that only live in memory aren't tracked.
+        if (vFile != null) listener.psiChanged(vFile, event.getParent());
+    }
+
+    /**
+     * Runs {@link Listener#update} shortly, unless it is already scheduled.
+     */
+    public void scheduleUpdate() {
+        queue.queue(Update.create(this, listener::update));
+    }
+}
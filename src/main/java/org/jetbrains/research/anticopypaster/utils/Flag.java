@@ -9,12 +9,25 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.function.Function;
 
 public abstract class Flag{
+    /**
+     * Standard score of the 95% confidence level of the thresholds.
+     */
+    private static final double Z_95 = 1.96;
 
     protected List<FeaturesVector> featuresVectorList;
 
     protected float[] thresholds;
+    /**
+     * Distribution of each selected metric over the FVs, in the order of selectedMetrics.
+     */
+    private QuantileSketch[] sketches;
+    /**
+     * Whether the FVs are a sample of the project's methods, making the thresholds estimates.
+     */
+    protected boolean sampled;
 
     protected float[] lastCalculatedMetric;
     protected Project project;
@@ -53,40 +66,42 @@ public abstract class Flag{
 
     /**
      * Recalculates this Flag's threshold from its current sensitivity value.
-     * This is done by calculating its relevant metrics for each of its FVs,
-     * sorting the resulting list, and grabbing the element of the list at
-     * the same relative position in the list as the sensitivity value is
-     * within the range of 0 to 100.
+     * Each threshold is the value of its metric at the same percentile of the
+     * FVs as the sensitivity value is within the range of 0 to 100, read
+     * from a sketch of the metric's values built on the first call.
      */
     public void calculateThreshold() {
+        if (sketches == null) buildSketches();
+        int sensitivity = getSensitivity();
         thresholds = new float[numFeatures];
-        if (featuresVectorList != null && featuresVectorList.size() != 0) {
-            // FeaturesVector list exists and has at least one element.
-            if (featuresVectorList.size() == 1) {
-                thresholds = getMetric(featuresVectorList.get(0));
-            } else {
-                float[][] metricValues = new float[numFeatures][featuresVectorList.size()];
-                for (int i = 0; i < featuresVectorList.size(); i++) {
-                    float[] metric = getMetric(featuresVectorList.get(i));
-                    for (int j = 0; j < numFeatures; j++) {
-                        metricValues[j][i] = metric[j];
-                    }
-                }
-                for (float[] metricValue : metricValues)
-                    Arrays.sort(metricValue);
-
-                if (getSensitivity() == 100) {
-                    for (int k = 0; k < numFeatures; k++)
-                        thresholds[k] = metricValues[k][metricValues[k].length - 1];
-                } else {
-                    double position = (double) getSensitivity() * (featuresVectorList.size() - 1) / 100;
-                    int lowerIndex = (int) Math.floor(position);
-                    float proportion = (float) position % 1;
-                    for (int l = 0; l < numFeatures; l++)
-                        thresholds[l] = (1 - proportion) * metricValues[l][lowerIndex]
-                                + proportion * metricValues[l][lowerIndex + 1];
-                }
-            }
+        for (int i = 0; i < numFeatures; i++)
+            thresholds[i] = sketches[i].percentile(sensitivity);
+    }
+
+    /**
+     * Reads the distribution of each selected metric from the given summaries instead
+     * of the FVs, and recalculates the thresholds from them.
+     * @param sketchOf Summary of the values of a metric, which this flag keeps
+     */
+    public void useSketches(Function<Feature, QuantileSketch> sketchOf) {
+        QuantileSketch[] result = new QuantileSketch[numFeatures];
+        for (int i = 0; i < numFeatures; i++)
+            result[i] = sketchOf.apply(selectedMetrics.get(i));
+        sketches = result;
+        calculateThreshold();
+    }
+
+    /**
+     * Summarizes the values of every selected metric over the FVs.
+     */
+    private void buildSketches() {
+        sketches = new QuantileSketch[numFeatures];
+        for (int i = 0; i < numFeatures; i++)
+            sketches[i] = new QuantileSketch();
+        if (featuresVectorList == null) return;
+        for (FeaturesVector fv : featuresVectorList) {
+            for (int i = 0; i < numFeatures; i++)
+                sketches[i].add((float) fv.getFeatureValue(selectedMetrics.get(i)));
         }
     }
 
@@ -97,11 +112,7 @@ public abstract class Flag{
      * (Recalculates the threshold value if the sensitivity has changed.)
      */
     public boolean isFlagTriggered(FeaturesVector featuresVector) {
-        int sensitivity = getSensitivity();
-        if (sensitivity != cachedSensitivity) {
-            cachedSensitivity = sensitivity;
-            calculateThreshold();
-        }
+        refreshThresholds();
         lastCalculatedMetric = getMetric(featuresVector);
         boolean flagTripped = false;
         for (int i = 0; i < numFeatures; i++) {
@@ -120,6 +131,43 @@ public abstract class Flag{
         return flagTripped;
     }
 
+    /**
+     * Returns the thresholds of the selected metrics for the current sensitivity,
+     * in the order of {@link #getSelectedMetrics()}.
+     * (Recalculates them if the sensitivity has changed.)
+     */
+    public float[] getThresholds() {
+        refreshThresholds();
+        return thresholds;
+    }
+
+    private void refreshThresholds() {
+        int sensitivity = getSensitivity();
+        if (sensitivity != cachedSensitivity) {
+            cachedSensitivity = sensitivity;
+            calculateThreshold();
+        }
+    }
+
+    /**
+     * Returns the 95% confidence interval of each threshold, as the FVs are a sample
+     * of the project's methods: the lower bounds, then the upper bounds.
+     */
+    public float[][] getThresholdBounds() {
+        refreshThresholds();
+        float[][] bounds = new float[2][numFeatures];
+        for (int i = 0; i < numFeatures; i++) {
+            float[] interval = sketches[i].percentileInterval(cachedSensitivity, Z_95);
+            bounds[0][i] = interval[0];
+            bounds[1][i] = interval[1];
+        }
+        return bounds;
+    }
+
+    public void setSampled(boolean sampled) {
+        this.sampled = sampled;
+    }
+
     /**
      * This function logs the last known metric and the current threshold
      * @param filepath path to the log file
@@ -149,6 +197,11 @@ public abstract class Flag{
     protected void logThresholds(String filepath, String metricName){
         try(FileWriter fr = new FileWriter(filepath, true)){
             fr.write(metricName + " Threshold: " + Arrays.toString(thresholds) + "\n");
+            if (sampled) {
+                float[][] bounds = getThresholdBounds();
+                fr.write(metricName + " Threshold 95% Confidence Interval: "
+                        + Arrays.toString(bounds[0]) + ", " + Arrays.toString(bounds[1]) + "\n");
+            }
         } catch(IOException ioe) { ioe.printStackTrace(); }
     }
 
@@ -160,6 +213,20 @@ public abstract class Flag{
      */
     public abstract void logThresholds(String filepath);
 
+    /**
+     * Returns the features this flag compares against its thresholds.
+     */
+    public List<Feature> getSelectedMetrics() {
+        return selectedMetrics;
+    }
+
+    /**
+     * Returns the selected metrics that must all exceed their thresholds for this flag to trigger.
+     */
+    public List<Feature> getRequiredMetrics() {
+        return requiredMetrics;
+    }
+
     public void setProject(Project project) {
         this.project = project;
     }
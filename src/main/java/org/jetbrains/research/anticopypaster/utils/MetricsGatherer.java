@@ -1,104 +1,365 @@
 package org.jetbrains.research.anticopypaster.utils;
 
 import com.intellij.ide.highlighter.JavaFileType;
-import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.fileTypes.FileTypeRegistry;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.progress.util.ProgressIndicatorUtils;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectFileIndex;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.*;
 
 import com.intellij.psi.search.FileTypeIndex;
 import com.intellij.psi.search.GlobalSearchScope;
 import com.intellij.psi.util.PsiTreeUtil;
-import org.jetbrains.research.anticopypaster.metrics.MetricCalculator;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.research.anticopypaster.AntiCopyPasterBundle;
+import org.jetbrains.research.anticopypaster.config.ProjectSettingsState;
+import org.jetbrains.research.anticopypaster.metrics.FeaturesVectorCache;
 import org.jetbrains.research.anticopypaster.metrics.features.FeaturesVector;
 
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class is used to gather metrics from every method within the currently
- * open IntelliJ Project, provided on declaration.
+ * open IntelliJ Project, provided on declaration. Gathering is a background task:
+ * files are measured on a bounded pool, each in a non-blocking read action,
+ * and the metrics are published all at once when every file is done.
+ * On projects with more methods than the sample size, only a sample of them is kept,
+ * stratified by module: the methods are counted first from the declarations, and
+ * each module keeps a share of the sample in proportion to its methods.
  */
-public class MetricsGatherer {
+public class MetricsGatherer extends Task.Backgroundable {
+    private static final int MAX_THREADS = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, 4));
+    /**
+     * How many more methods of a module are measured than it keeps when sampling,
+     * so that the kept ones come from more files.
+     */
+    private static final int OVERSAMPLING = 2;
+    private static final Logger LOG = Logger.getInstance(MetricsGatherer.class);
+
     /**
      * A list of all the FeaturesVectors for all methods within
-     * the IntelliJ Project.
+     * the IntelliJ Project. Empty until gathering finishes.
      */
-    private List<FeaturesVector> methodsMetrics;
+    private volatile List<FeaturesVector> methodsMetrics = Collections.emptyList();
+    private boolean gathered;
+    private volatile boolean sampled;
+    private final List<Runnable> gatheredCallbacks = new ArrayList<>();
     private Project project;
 
     /**
-     * Builds an instance of the MetricsGatherer and
-     * does the initial (and only) metrics gathering.
+     * Builds an instance of the MetricsGatherer. Metrics are gathered
+     * once the task is queued or run.
      */
     public MetricsGatherer(Project project){
-        this.methodsMetrics = new ArrayList<>();
+        super(project, AntiCopyPasterBundle.message("anticopypaster.metrics.gathering"), true);
         this.project = project;
-        gatherMetrics();
     }
 
     /**
      * Getter for the methodsMetrics.
-     * @return the list of featuresVectors made by the gatherer.
+     * @return the list of featuresVectors made by the gatherer, empty if it hasn't finished yet.
      */
     public List<FeaturesVector> getMethodsMetrics() {
         return this.methodsMetrics;
     }
+
     /**
-     * Gathers all the metrics from every method within the open IntelliJ Project.
+     * Runs the callback once the metrics are published, on the thread that gathered them,
+     * or right away if they already are.
      */
-    private void gatherMetrics() {
-        var vfCollectionWrapper = new Object(){ Collection<VirtualFile> vfCollection = null; };
-        ApplicationManager.getApplication().runReadAction(() -> {
-            // Gets all Java files from the Project
-            vfCollectionWrapper.vfCollection = FileTypeIndex.getFiles(
-                    JavaFileType.INSTANCE,
-                    GlobalSearchScope.projectScope(project));
+    public void whenGathered(Runnable callback) {
+        synchronized (gatheredCallbacks) {
+            if (!gathered) {
+                gatheredCallbacks.add(callback);
+                return;
+            }
+        }
+        callback.run();
+    }
+
+    /**
+     * Whether the published metrics are a sample of the project's methods rather than all of them.
+     */
+    public boolean isSampled() {
+        return sampled;
+    }
+
+    /**
+     * Gathers the metrics from the methods within the open IntelliJ Project:
+     * all of them, or a sample of about {@link ProjectSettingsState#metricsSampleSize}
+     * of them if the project has more. Nothing is published if the task is cancelled.
+     */
+    @Override
+    public void run(@NotNull ProgressIndicator indicator) {
+        indicator.setIndeterminate(false);
+        int sampleSize = ProjectSettingsState.getInstance(project).metricsSampleSize;
+        // Gets all Java files from the Project, by module
+        Map<Module, List<VirtualFile>> filesByModule = ReadAction.compute(() -> {
+            Map<Module, List<VirtualFile>> result = new LinkedHashMap<>();
+            ProjectFileIndex index = ProjectFileIndex.getInstance(project);
+            for (VirtualFile file : FileTypeIndex.getFiles(JavaFileType.INSTANCE, GlobalSearchScope.projectScope(project))) {
+                if (!isTestFile(file))
+                    result.computeIfAbsent(index.getModuleForFile(file), module -> new ArrayList<>()).add(file);
+            }
+            return result;
         });
-        Collection<VirtualFile> vfCollection = vfCollectionWrapper.vfCollection;
-        // Gets a PsiFile for every Java file in the project
-        List<PsiFile> pfList = new ArrayList<>();
-        for (VirtualFile file : vfCollection) {
-            // Makes everything lowercase for consistency, and gets rid of file extension
-            String filename = file.getName().toLowerCase().split("[.]")[0];
-            if (!filename.startsWith("test") && !filename.endsWith("test")) {
-                ApplicationManager.getApplication().runReadAction(() -> {
-                    pfList.add(PsiManager.getInstance(project).findFile(file));
-                });
+        Map<Module, Integer> methodCounts = sampleSize > 0
+                ? countMethodsByModule(filesByModule, indicator)
+                : Collections.emptyMap();
+        Map<Module, Integer> capacities = allocate(methodCounts, sampleSize);
+        int fileCount = filesByModule.values().stream().mapToInt(List::size).sum();
+        List<VirtualFile> files = new ArrayList<>(fileCount);
+        List<Stratum> strata = new ArrayList<>(fileCount);
+        Random random = new Random();
+        for (Map.Entry<Module, List<VirtualFile>> entry : filesByModule.entrySet()) {
+            List<VirtualFile> moduleFiles = entry.getValue();
+            Integer capacity = capacities.get(entry.getKey());
+            Stratum stratum = capacity != null ? new Stratum(capacity, random) : null;
+            // Files are measured in random order, so that those measured before the stratum is full are a random sample.
+            if (stratum != null) Collections.shuffle(moduleFiles, random);
+            for (VirtualFile file : moduleFiles) {
+                files.add(file);
+                strata.add(stratum);
+            }
+        }
 
+        ExecutorService pool = AppExecutorUtil.createBoundedApplicationPoolExecutor("AntiCopyPaster metrics", MAX_THREADS);
+        AtomicInteger done = new AtomicInteger();
+        List<Future<List<FeaturesVector>>> futures = new ArrayList<>();
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                VirtualFile file = files.get(i);
+                Stratum stratum = strata.get(i);
+                futures.add(pool.submit(() -> {
+                    List<FeaturesVector> features = Collections.emptyList();
+                    if (stratum == null || !stratum.isFull()) {
+                        // Non-blocking so that a write action restarts the file instead of waiting for it.
+                        features = ReadAction.nonBlocking(() -> measure(project, file))
+                                .wrapProgress(indicator)
+                                .expireWhen(project::isDisposed)
+                                .executeSynchronously();
+                        if (features != null && stratum != null) stratum.measured(features.size());
+                    }
+                    indicator.setFraction((double) done.incrementAndGet() / files.size());
+                    return features;
+                }));
             }
+            Map<VirtualFile, List<FeaturesVector>> byFile = new LinkedHashMap<>();
+            for (int i = 0; i < files.size(); i++) {
+                if (project.isDisposed()) throw new ProcessCanceledException();
+                List<FeaturesVector> features = ProgressIndicatorUtils.awaitWithCheckCanceled(futures.get(i), indicator);
+                if (features == null) throw new ProcessCanceledException();
+                Stratum stratum = strata.get(i);
+                if (stratum == null) {
+                    byFile.put(files.get(i), features);
+                    continue;
+                }
+                for (FeaturesVector fv : features)
+                    stratum.offer(files.get(i), fv);
+            }
+            Set<Stratum> distinctStrata = new LinkedHashSet<>(strata);
+            distinctStrata.remove(null);
+            for (Stratum stratum : distinctStrata)
+                stratum.collect(byFile);
+            sampled = distinctStrata.stream().anyMatch(Stratum::isSampled);
+            List<FeaturesVector> result = new ArrayList<>();
+            for (List<FeaturesVector> features : byFile.values())
+                result.addAll(features);
+            if (sampled)
+                LOG.info("[ACP] Sampled " + result.size() + " of the methods of " + distinctStrata.size()
+                        + " modules for the metrics thresholds.");
+            // The store keeps these metrics up to date from now on, sampling changed files alike.
+            // Shares are proportional to methods, so every module keeps about the same fraction of them.
+            long total = methodCounts.values().stream().mapToLong(Integer::longValue).sum();
+            ProjectMetricsStore.getInstance(project).load(byFile, sampled ? (double) sampleSize / total : 1);
+            publish(Collections.unmodifiableList(result));
+        } finally {
+            pool.shutdownNow();
         }
+    }
+
+    @Override
+    public void onFinished() {
+        if (!project.isDisposed())
+            ProjectMetricsStore.getInstance(project).gatheringFinished(this);
+    }
 
-        // Gets all the PsiMethods, as well as their start and end lines.
-        for (PsiFile psiFile: pfList) {
-            // wrappers are used to get information out of runReadActions.
-            // PsiTree's can't be accessed outside a read action, or it
-            // can cause race conditions.
-            var psiMethodWrapper = new Object() {
-                Collection<PsiMethod> psiMethods = null;
-            };
-            ApplicationManager.getApplication().runReadAction(() -> {
-                psiMethodWrapper.psiMethods = PsiTreeUtil.findChildrenOfType(psiFile, PsiMethod.class);
-            });
-
-            Collection<PsiMethod> psiMethods = psiMethodWrapper.psiMethods;
-            for (PsiMethod method : psiMethods) {
-                int startLine = PsiUtil.getNumberOfLine(psiFile, method.getTextRange().getStartOffset());
-                int endLine = PsiUtil.getNumberOfLine(psiFile, method.getTextRange().getEndOffset());
-
-                var fvWrapper = new Object() {
-                    FeaturesVector features = null;
-                };
-                ApplicationManager.getApplication().runReadAction(() -> {
-                    fvWrapper.features = new
-                            MetricCalculator(method, method.getText(), startLine, endLine).getFeaturesVector();
-                });
-
-                FeaturesVector features = fvWrapper.features;
-                this.methodsMetrics.add(features);
+    /**
+     * Counts the methods of each module from the declarations of its files,
+     * which stub-based PSI answers without parsing files that aren't open.
+     */
+    private Map<Module, Integer> countMethodsByModule(Map<Module, List<VirtualFile>> filesByModule,
+                                                      ProgressIndicator indicator) {
+        Map<Module, Integer> result = new LinkedHashMap<>();
+        for (Map.Entry<Module, List<VirtualFile>> entry : filesByModule.entrySet()) {
+            int count = 0;
+            for (VirtualFile file : entry.getValue()) {
+                Integer methods = ReadAction.nonBlocking(() -> countMethods(project, file))
+                        .wrapProgress(indicator)
+                        .expireWhen(project::isDisposed)
+                        .executeSynchronously();
+                if (methods == null) throw new ProcessCanceledException();
+                count += methods;
             }
+            result.put(entry.getKey(), count);
+        }
+        return result;
+    }
+
+    /**
+     * Counts the methods declared by the classes of a file, including nested ones.
+     * Methods of local and anonymous classes aren't counted, so {@link #measure} may find a few more.
+     */
+    private static int countMethods(Project project, VirtualFile file) {
+        PsiFile psiFile = file.isValid() ? PsiManager.getInstance(project).findFile(file) : null;
+        if (!(psiFile instanceof PsiClassOwner owner)) return 0;
+        int count = 0;
+        for (PsiClass psiClass : owner.getClasses())
+            count += countMethods(psiClass);
+        return count;
+    }
+
+    private static int countMethods(PsiClass psiClass) {
+        int count = psiClass.getMethods().length;
+        for (PsiClass inner : psiClass.getInnerClasses())
+            count += countMethods(inner);
+        return count;
+    }
+
+    /**
+     * Splits the sample size between strata in proportion to their methods. Shares are rounded
+     * down, and the methods left over go one by one to the strata with the largest remainders,
+     * so the capacities add up to the sample size exactly.
+     * @param methodCounts Number of methods of each stratum
+     * @return The capacity of each stratum, or an empty map if every method fits in the sample
+     */
+    static <K> Map<K, Integer> allocate(Map<K, Integer> methodCounts, int sampleSize) {
+        long total = 0;
+        for (int count : methodCounts.values())
+            total += count;
+        if (total <= sampleSize) return Collections.emptyMap();
+        Map<K, Integer> result = new LinkedHashMap<>();
+        Map<K, Long> remainders = new LinkedHashMap<>();
+        int allocated = 0;
+        for (Map.Entry<K, Integer> entry : methodCounts.entrySet()) {
+            long scaled = (long) sampleSize * entry.getValue();
+            int share = (int) (scaled / total);
+            result.put(entry.getKey(), share);
+            remainders.put(entry.getKey(), scaled % total);
+            allocated += share;
+        }
+        List<K> byRemainder = new ArrayList<>(remainders.keySet());
+        byRemainder.sort((a, b) -> Long.compare(remainders.get(b), remainders.get(a)));
+        for (int i = 0; allocated < sampleSize; i++, allocated++)
+            result.merge(byRemainder.get(i), 1, Integer::sum);
+        return result;
+    }
+
+    /**
+     * Measures every method of a file.
+     */
+    static List<FeaturesVector> measure(Project project, VirtualFile file) {
+        PsiFile psiFile = file.isValid() ? PsiManager.getInstance(project).findFile(file) : null;
+        if (psiFile == null) return Collections.emptyList();
+        List<PsiMethod> psiMethods = new ArrayList<>(PsiTreeUtil.findChildrenOfType(psiFile, PsiMethod.class));
+        return FeaturesVectorCache.getInstance(project).getAll(psiFile, psiMethods);
+    }
+
+    /**
+     * Determines if a file is one whose methods are gathered: a Java file of the project that isn't a test.
+     */
+    static boolean isMeasured(Project project, VirtualFile file) {
+        return FileTypeRegistry.getInstance().isFileOfType(file, JavaFileType.INSTANCE)
+                && ProjectFileIndex.getInstance(project).isInContent(file)
+                && !isTestFile(file);
+    }
+
+    private static boolean isTestFile(VirtualFile file) {
+        // Makes everything lowercase for consistency, and gets rid of file extension
+        String filename = file.getName().toLowerCase().split("[.]")[0];
+        return filename.startsWith("test") || filename.endsWith("test");
+    }
+
+    /**
+     * Methods of one module, of which a reservoir keeps a uniform sample of fixed size.
+     * Once twice as many methods were measured, the remaining files of the module are skipped.
+     * A module with no share of the sample skips all of its files.
+     */
+    private static final class Stratum {
+        private final int capacity;
+        private final Random random;
+        private final AtomicInteger measured = new AtomicInteger();
+        private final List<VirtualFile> files = new ArrayList<>();
+        private final List<FeaturesVector> vectors = new ArrayList<>();
+        private long offered;
+        private boolean skipped;
+
+        Stratum(int capacity, Random random) {
+            this.capacity = capacity;
+            this.random = random;
+        }
+
+        boolean isFull() {
+            if (measured.get() < OVERSAMPLING * capacity) return false;
+            skipped = true;
+            return true;
+        }
+
+        void measured(int methods) {
+            measured.addAndGet(methods);
+        }
+
+        void offer(VirtualFile file, FeaturesVector fv) {
+            offered++;
+            if (vectors.size() < capacity) {
+                files.add(file);
+                vectors.add(fv);
+                return;
+            }
+            long slot = (long) (random.nextDouble() * offered);
+            if (slot < capacity) {
+                files.set((int) slot, file);
+                vectors.set((int) slot, fv);
+            }
+        }
+
+        boolean isSampled() {
+            return skipped || offered > capacity;
+        }
+
+        void collect(Map<VirtualFile, List<FeaturesVector>> byFile) {
+            for (int i = 0; i < vectors.size(); i++)
+                byFile.computeIfAbsent(files.get(i), file -> new ArrayList<>()).add(vectors.get(i));
+        }
+    }
+
+    private void publish(List<FeaturesVector> metrics) {
+        List<Runnable> callbacks;
+        synchronized (gatheredCallbacks) {
+            this.methodsMetrics = metrics;
+            gathered = true;
+            callbacks = new ArrayList<>(gatheredCallbacks);
+            gatheredCallbacks.clear();
         }
+        callbacks.forEach(Runnable::run);
     }
 
     public void setProject(Project project) {
@@ -0,0 +1,287 @@
+package org.jetbrains.research.anticopypaster.utils;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiElement;
+import com.intellij.util.messages.Topic;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.research.anticopypaster.metrics.features.Feature;
+import org.jetbrains.research.anticopypaster.metrics.features.FeaturesVector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Features of every method of the project, by file, kept up to date as files change.
+ * The store is shared by every model and task of the project and disposed with it.
+ * It is filled by a single full {@link MetricsGatherer} run, started by the first
+ * {@link #ensureGathered} call; after that, edited,
+ * added and moved files are measured again and deleted files are dropped, shortly
+ * after the first change of a burst. The distribution of each feature is summarized
+ * by a {@link QuantileSketch}: each change removes the previous values of the files
+ * measured again and adds their new ones, rebuilding the sketches once too many
+ * values were removed, then bumps the {@link #getVersion version}
+ * and notifies the {@link #METRICS_CHANGED} listeners, which re-derive their thresholds.
+ */
+@Service(Service.Level.PROJECT)
+public final class ProjectMetricsStore implements Disposable {
+    /**
+     * Notified on the project's message bus after the store was filled or changed, on the thread that changed it.
+     */
+    public interface Listener {
+        void metricsChanged();
+    }
+
+    public static final Topic<Listener> METRICS_CHANGED = new Topic<>("AntiCopyPaster project metrics", Listener.class);
+
+    /**
+     * Longest time a change waits before its file is measured again.
+     * Changes arriving in the meantime are merged into the same update.
+     */
+    private static final int MERGING_TIME_SPAN_MS = 1000;
+    /**
+     * Share of removed values, over the values left, past which the distributions are rebuilt
+     * from the stored features. Removals only ever add to the summary and blur its ranks.
+     */
+    private static final double REBASE_THRESHOLD = 0.25;
+
+    private final Project project;
+    private final Map<VirtualFile, List<FeaturesVector>> byFile = new ConcurrentHashMap<>();
+    private final Set<VirtualFile> changed = ConcurrentHashMap.newKeySet();
+    private final ChangedFilesQueue queue;
+    /**
+     * Distribution of each feature over the methods of the store, by feature id.
+     */
+    private final QuantileSketch[] sketches = new QuantileSketch[Feature.values().length];
+    private volatile boolean loaded;
+    private volatile long version;
+    /**
+     * Fraction of the methods of a file the store keeps, 1 unless it holds a sample.
+     */
+    private volatile double sampleRate = 1;
+    /**
+     * The gathering filling the store, or null if none is running.
+     */
+    private MetricsGatherer gatherer;
+    private boolean disposed;
+
+    public ProjectMetricsStore(Project project) {
+        this.project = project;
+        queue = new ChangedFilesQueue(project, "AntiCopyPaster project metrics", MERGING_TIME_SPAN_MS, this,
+                new ChangedFilesQueue.Listener() {
+                    @Override
+                    public void psiChanged(@NotNull VirtualFile file, @Nullable PsiElement parent) {
+                        changed(file);
+                    }
+
+                    @Override
+                    public void fileDeleted(@NotNull VirtualFile file) {
+                        if (!loaded) return;
+                        // Deleted files are no longer valid, so the update drops them.
+                        byFile.keySet().stream()
+                                .filter(measured -> VfsUtilCore.isAncestor(file, measured, false))
+                                .forEach(changed::add);
+                        queue.scheduleUpdate();
+                    }
+
+                    @Override
+                    public void fileChanged(@NotNull VirtualFile file) {
+                        // Files created, copied, moved or changed outside the IDE.
+                        changed(file);
+                    }
+
+                    @Override
+                    public void update() {
+                        ProjectMetricsStore.this.update();
+                    }
+                });
+    }
+
+    public static ProjectMetricsStore getInstance(Project project) {
+        return project.getService(ProjectMetricsStore.class);
+    }
+
+    /**
+     * Replaces the contents of the store with the result of a full gathering.
+     * @param metrics Features of the methods of every measured file
+     * @param sampleRate Fraction of the project's methods these are a sample of, 1 if they are all of them.
+     *                   Files changed afterwards keep each of their methods with that probability,
+     *                   so that the store stays a sample of the same size that doesn't favor them.
+     */
+    void load(Map<VirtualFile, List<FeaturesVector>> metrics, double sampleRate) {
+        if (fill(metrics, sampleRate)) notifyChanged();
+    }
+
+    private synchronized boolean fill(Map<VirtualFile, List<FeaturesVector>> metrics, double sampleRate) {
+        if (disposed) return false;
+        byFile.clear();
+        byFile.putAll(metrics);
+        rebase();
+        this.sampleRate = sampleRate;
+        loaded = true;
+        version++;
+        return true;
+    }
+
+    /**
+     * Starts gathering the metrics of the project in the background,
+     * unless the store is already filled or being filled.
+     */
+    public synchronized void ensureGathered() {
+        if (loaded || gatherer != null || disposed) return;
+        gatherer = new MetricsGatherer(project);
+        gatherer.queue();
+    }
+
+    /**
+     * Called once a gathering has finished, whether or not it was cancelled.
+     * If it was, the next {@link #ensureGathered} call starts over.
+     */
+    synchronized void gatheringFinished(MetricsGatherer finished) {
+        if (gatherer == finished) gatherer = null;
+    }
+
+    /**
+     * @return Whether a full gathering has filled the store yet
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * @return Whether the store holds a sample of the project's methods rather than all of them
+     */
+    public boolean isSampled() {
+        return sampleRate < 1;
+    }
+
+    /**
+     * Gets the distribution of a feature over the methods of the project, as of the last change.
+     * @return A copy of the summary, which later changes don't affect, or null if the store isn't loaded
+     */
+    public synchronized QuantileSketch getSketch(Feature feature) {
+        QuantileSketch sketch = sketches[feature.getId()];
+        if (sketch == null) return null;
+        QuantileSketch copy = new QuantileSketch();
+        copy.merge(sketch);
+        return copy;
+    }
+
+    /**
+     * @return A number that changes whenever the distributions do
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    private void changed(VirtualFile file) {
+        if (!loaded) return;
+        changed.add(file);
+        queue.scheduleUpdate();
+    }
+
+    /**
+     * Measures the changed files again and applies the difference to the distributions.
+     */
+    private void update() {
+        List<VirtualFile> files = new ArrayList<>(changed);
+        changed.removeAll(files);
+        boolean updated = false;
+        for (VirtualFile file : files) {
+            // Non-blocking so that typing restarts the measurement instead of waiting for it.
+            List<FeaturesVector> features = ReadAction.nonBlocking(() -> measure(file))
+                    .expireWith(this)
+                    .executeSynchronously();
+            if (features == null) break;
+            updated |= replace(file, features);
+        }
+        if (updated) {
+            publish();
+            notifyChanged();
+        }
+    }
+
+    /**
+     * Measures the methods of a file, keeping as many of them as the sample would.
+     */
+    private List<FeaturesVector> measure(VirtualFile file) {
+        if (!file.isValid() || !MetricsGatherer.isMeasured(project, file)) return Collections.emptyList();
+        List<FeaturesVector> features = MetricsGatherer.measure(project, file);
+        double rate = sampleRate;
+        if (rate >= 1) return features;
+        Random random = ThreadLocalRandom.current();
+        List<FeaturesVector> kept = new ArrayList<>();
+        for (FeaturesVector fv : features) {
+            if (random.nextDouble() < rate) kept.add(fv);
+        }
+        return kept;
+    }
+
+    /**
+     * Replaces the features of a file, removing its previous values from the distributions.
+     * @return Whether the store changed
+     */
+    private synchronized boolean replace(VirtualFile file, List<FeaturesVector> features) {
+        if (disposed) return false;
+        List<FeaturesVector> previous = features.isEmpty() ? byFile.remove(file) : byFile.put(file, features);
+        if (previous == null && features.isEmpty()) return false;
+        if (previous != null) {
+            for (FeaturesVector fv : previous) {
+                for (int id = 0; id < sketches.length; id++)
+                    sketches[id].remove(fv.getValue(id));
+            }
+        }
+        addAll(features);
+        QuantileSketch sketch = sketches[0];
+        if (sketch.removedSize() > REBASE_THRESHOLD * sketch.size()) rebase();
+        return true;
+    }
+
+    /**
+     * Rebuilds the distributions from the features of the store, dropping the removed values.
+     */
+    private void rebase() {
+        for (int id = 0; id < sketches.length; id++)
+            sketches[id] = new QuantileSketch();
+        for (List<FeaturesVector> features : byFile.values())
+            addAll(features);
+    }
+
+    private void addAll(List<FeaturesVector> features) {
+        for (FeaturesVector fv : features) {
+            for (int id = 0; id < sketches.length; id++)
+                sketches[id].add(fv.getValue(id));
+        }
+    }
+
+    private synchronized void publish() {
+        version++;
+    }
+
+    /**
+     * Notifies the listeners, outside the lock of the store as they read it back.
+     */
+    private void notifyChanged() {
+        if (!project.isDisposed()) project.getMessageBus().syncPublisher(METRICS_CHANGED).metricsChanged();
+    }
+
+    @Override
+    public synchronized void dispose() {
+        disposed = true;
+        byFile.clear();
+        Arrays.fill(sketches, null);
+        changed.clear();
+    }
+}
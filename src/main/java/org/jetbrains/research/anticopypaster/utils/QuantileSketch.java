@@ -0,0 +1,291 @@
+package org.jetbrains.research.anticopypaster.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Summary of a stream of values answering percentile queries in bounded memory,
+ * after the KLL sketch. Values are kept exactly until a level holds more than
+ * {@link #DEFAULT_CAPACITY} of them; the level is then compacted by keeping every
+ * other sorted value, each kept value standing for twice as many values on the next level.
+ * Percentiles of up to that many values are therefore exact, and larger streams
+ * get an error on the rank of about the number of levels over the capacity.
+ * Removed values are summarized by a second sketch whose ranks are subtracted, so
+ * removing a value that was added is exact as long as neither sketch was compacted.
+ */
+public class QuantileSketch {
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final int capacity;
+    /** Values of each level, the values of level {@code i} standing for {@code 2^i} values each. */
+    private final List<float[]> levels = new ArrayList<>();
+    private final List<Integer> sizes = new ArrayList<>();
+    private long count;
+    /** Extremes are tracked apart, as compactions may drop them. */
+    private float min = Float.POSITIVE_INFINITY;
+    private float max = Float.NEGATIVE_INFINITY;
+    /** Alternates which half of a level is kept, so that compactions don't skew the values one way. */
+    private boolean keepOdd;
+    /** Values removed, or null if none ever was. */
+    private QuantileSketch removed;
+
+    /** Sorted values and the number of values up to each of them, built on the first query after a change. */
+    private float[] sortedValues;
+    private long[] cumulativeWeights;
+    /** Extremes of the values left once removed ones are subtracted. */
+    private float low;
+    private float high;
+    /** Value at each whole percentile from 0 to 100, built with the sorted values. */
+    private final float[] percentiles = new float[101];
+
+    public QuantileSketch() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public QuantileSketch(int capacity) {
+        if (capacity < 2) throw new IllegalArgumentException("Capacity must be at least 2, got " + capacity);
+        this.capacity = capacity;
+    }
+
+    /**
+     * Adds a value to the summary.
+     */
+    public void add(float value) {
+        append(0, value);
+        count++;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        sortedValues = null;
+    }
+
+    /**
+     * Removes a value that was added to the summary before.
+     */
+    public void remove(float value) {
+        if (removed == null) removed = new QuantileSketch(capacity);
+        removed.add(value);
+        count--;
+        sortedValues = null;
+    }
+
+    /**
+     * Adds all values summarized by another sketch to this one, and removes the values removed from it.
+     * Merging into an empty sketch of the same capacity copies the other one exactly.
+     */
+    public void merge(QuantileSketch other) {
+        for (int level = 0; level < other.levels.size(); level++) {
+            float[] values = other.levels.get(level);
+            for (int i = 0; i < other.sizes.get(level); i++)
+                append(level, values[i]);
+        }
+        if (other.removed != null) {
+            if (removed == null) removed = new QuantileSketch(capacity);
+            removed.merge(other.removed);
+        }
+        count += other.count;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        sortedValues = null;
+    }
+
+    /**
+     * @return The number of values added and not removed so far
+     */
+    public long size() {
+        return count;
+    }
+
+    /**
+     * @return The number of values removed so far, which the summary keeps on top of the values added
+     */
+    public long removedSize() {
+        return removed == null ? 0 : removed.count;
+    }
+
+    /**
+     * Returns the value at the given percentile, linearly interpolated between the two closest ranks.
+     * Every percentile is computed at once on the first query after a change, so a query is a lookup.
+     * @param percentile Percentile from 0 to 100
+     * @return The value at that percentile, or 0 if no value is left
+     */
+    public float percentile(int percentile) {
+        if (count <= 0) return 0;
+        if (sortedValues == null) buildSortedView();
+        return percentiles[Math.min(Math.max(percentile, 0), 100)];
+    }
+
+    /**
+     * Returns a distribution-free confidence interval of the given percentile of the
+     * population the values were sampled from: the values at the ranks
+     * {@code n p +/- z sqrt(n p (1 - p))}, after the normal approximation of the binomial.
+     * @param percentile Percentile from 0 to 100
+     * @param z Standard score of the confidence level, 1.96 for 95%
+     * @return The lower and upper bounds, both 0 if no value is left
+     */
+    public float[] percentileInterval(int percentile, double z) {
+        if (count <= 0) return new float[2];
+        if (sortedValues == null) buildSortedView();
+        if (sortedValues.length == 0) return new float[2];
+        double p = Math.min(Math.max(percentile / 100.0, 0), 1);
+        double center = p * (count - 1);
+        double halfWidth = z * Math.sqrt(count * p * (1 - p));
+        long lowerRank = Math.max(0, (long) Math.floor(center - halfWidth));
+        long upperRank = Math.min(count - 1, (long) Math.ceil(center + halfWidth));
+        float lower = lowerRank == 0 ? low : valueAt(lowerRank);
+        float upper = upperRank == count - 1 ? high : valueAt(upperRank);
+        return new float[]{lower, upper};
+    }
+
+    /**
+     * @return The value of the given 0-based rank, among the values left
+     */
+    private float valueAt(long rank) {
+        int index = Arrays.binarySearch(cumulativeWeights, rank + 1);
+        if (index < 0) index = -index - 1;
+        return sortedValues[Math.min(index, sortedValues.length - 1)];
+    }
+
+    private void buildSortedView() {
+        buildRetainedView();
+        low = min;
+        high = max;
+        if (removed != null && removed.count > 0) subtractRemoved();
+        buildPercentiles();
+    }
+
+    /**
+     * Fills the value of each whole percentile. Ranks grow with the percentile,
+     * so a single pass over the sorted values finds them all.
+     */
+    private void buildPercentiles() {
+        Arrays.fill(percentiles, 0);
+        if (sortedValues.length == 0) return;
+        percentiles[0] = low;
+        percentiles[100] = high;
+        int index = 0;
+        for (int percentile = 1; percentile < 100; percentile++) {
+            double position = (double) percentile * (count - 1) / 100;
+            long lowerRank = (long) Math.floor(position);
+            float proportion = (float) position % 1;
+            index = indexOf(lowerRank, index);
+            float lower = sortedValues[index];
+            percentiles[percentile] = proportion == 0 ? lower
+                    : (1 - proportion) * lower + proportion * sortedValues[indexOf(lowerRank + 1, index)];
+        }
+    }
+
+    /**
+     * @param from Index to start looking from, at most the index of the rank
+     * @return The index of the sorted value of the given 0-based rank
+     */
+    private int indexOf(long rank, int from) {
+        int index = from;
+        while (index < sortedValues.length - 1 && cumulativeWeights[index] < rank + 1)
+            index++;
+        return index;
+    }
+
+    /**
+     * Subtracts the removed values from the sorted view.
+     */
+    private void subtractRemoved() {
+        removed.buildRetainedView();
+        float[] removedValues = removed.sortedValues;
+        long[] removedWeights = removed.cumulativeWeights;
+        // Subtracts from the rank of each value the weight of the removed values up to it,
+        // dropping the values left with no weight of their own.
+        int kept = 0;
+        int r = 0;
+        long previous = 0;
+        for (int i = 0; i < sortedValues.length; i++) {
+            while (r < removedValues.length && removedValues[r] <= sortedValues[i])
+                r++;
+            long rank = cumulativeWeights[i] - (r == 0 ? 0 : removedWeights[r - 1]);
+            rank = Math.min(rank, count);
+            if (rank <= previous) continue;
+            sortedValues[kept] = sortedValues[i];
+            cumulativeWeights[kept++] = rank;
+            previous = rank;
+        }
+        sortedValues = Arrays.copyOf(sortedValues, kept);
+        cumulativeWeights = Arrays.copyOf(cumulativeWeights, kept);
+        // The extremes may have been removed, so the retained ones stand in for them.
+        if (kept > 0) {
+            low = sortedValues[0];
+            high = sortedValues[kept - 1];
+        }
+    }
+
+    /**
+     * Sorts the values retained on every level, with the number of values up to each of them.
+     */
+    private void buildRetainedView() {
+        int retained = 0;
+        for (int size : sizes)
+            retained += size;
+        long[] packed = new long[retained];
+        float[] values = new float[retained];
+        int n = 0;
+        for (int level = 0; level < levels.size(); level++) {
+            float[] levelValues = levels.get(level);
+            for (int i = 0; i < sizes.get(level); i++) {
+                values[n] = levelValues[i];
+                // Sorts indices by value, keeping the level alongside to recover weights.
+                packed[n] = ((long) sortableBits(levelValues[i]) << 32) | ((long) level << 26) | n;
+                n++;
+            }
+        }
+        Arrays.sort(packed);
+        sortedValues = new float[retained];
+        cumulativeWeights = new long[retained];
+        long cumulative = 0;
+        for (int i = 0; i < retained; i++) {
+            int index = (int) (packed[i] & ((1 << 26) - 1));
+            int level = (int) ((packed[i] >>> 26) & 0x3F);
+            cumulative += 1L << level;
+            sortedValues[i] = values[index];
+            cumulativeWeights[i] = cumulative;
+        }
+    }
+
+    /**
+     * Maps a float to an int whose signed order is the order of the floats.
+     */
+    private static int sortableBits(float value) {
+        int bits = Float.floatToIntBits(value);
+        return bits ^ ((bits >> 31) & 0x7FFFFFFF);
+    }
+
+    private void append(int level, float value) {
+        while (levels.size() <= level) {
+            levels.add(new float[capacity + 1]);
+            sizes.add(0);
+        }
+        int size = sizes.get(level);
+        levels.get(level)[size++] = value;
+        sizes.set(level, size);
+        if (size > capacity) compact(level);
+    }
+
+    /**
+     * Halves a full level, promoting every other one of its sorted values to the next level.
+     */
+    private void compact(int level) {
+        float[] values = levels.get(level);
+        int size = sizes.get(level);
+        Arrays.sort(values, 0, size);
+        // An odd value out stays on this level so that no weight is lost.
+        int leftover = size % 2;
+        float last = values[size - 1];
+        sizes.set(level, 0);
+        int start = keepOdd ? 1 : 0;
+        keepOdd = !keepOdd;
+        for (int i = start; i < size - leftover; i += 2)
+            append(level + 1, values[i]);
+        if (leftover == 1) {
+            values[0] = last;
+            sizes.set(level, 1);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.jetbrains.research.anticopypaster.cloneprocessors;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MatchStateTest {
+    private MatchState ms;
+
+    @BeforeEach
+    public void beforeEach() {
+        ms = new MatchState();
+    }
+
+    @Test
+    public void testRollback_RemovesNewAliases() {
+        ms.addAlias(new Variable("a", "int"));
+        MatchState.Mark mark = ms.mark();
+        ms.addAlias(new Variable("b", "int"));
+        ms.addAlias(new Variable("c", "int"));
+
+        ms.rollback(mark);
+
+        assertEquals(1, ms.aliasMap().size());
+        assertEquals(0, ms.getAliasID("a"));
+        assertEquals(-1, ms.getAliasID("b"));
+        assertEquals(-1, ms.getAliasID("c"));
+    }
+
+    @Test
+    public void testRollback_RestoresShadowedAlias() {
+        ms.addAlias(new Variable("a", "int"));
+        MatchState.Mark mark = ms.mark();
+        ms.addAlias(new Variable("a", "String"));
+        assertEquals(1, ms.getAliasID("a"));
+
+        ms.rollback(mark);
+
+        assertEquals(0, ms.getAliasID("a"));
+        assertEquals("int", ms.aliasMap().get(0).type());
+    }
+
+    @Test
+    public void testRollback_ToCurrentMarkKeepsAliases() {
+        ms.addAlias(new Variable("a", "int"));
+        ms.rollback(ms.mark());
+
+        assertEquals(0, ms.getAliasID("a"));
+    }
+
+    @Test
+    public void testRollback_NestedMarks() {
+        MatchState.Mark outer = ms.mark();
+        ms.addAlias(new Variable("a", "int"));
+        MatchState.Mark inner = ms.mark();
+        ms.addAlias(new Variable("a", "long"));
+        ms.addAlias(new Variable("b", "int"));
+
+        ms.rollback(inner);
+        assertEquals(0, ms.getAliasID("a"));
+        assertEquals(-1, ms.getAliasID("b"));
+
+        // Aliases registered after a rollback reuse the freed IDs.
+        ms.addAlias(new Variable("b", "int"));
+        assertEquals(1, ms.getAliasID("b"));
+
+        ms.rollback(outer);
+        assertTrue(ms.aliasMap().isEmpty());
+        assertEquals(-1, ms.getAliasID("a"));
+        assertEquals(-1, ms.getAliasID("b"));
+    }
+
+    @Test
+    public void testRollback_RestoresScopeAndParameters() {
+        ms.addToScope(new Variable("a", "int"));
+        ms.addParameter(null, "int", new HashSet<>(), new HashSet<>());
+        MatchState.Mark mark = ms.mark();
+        ms.addToScope(new Variable("b", "int"));
+        ms.addParameter(null, "String", new HashSet<>(), new HashSet<>());
+        ms.setExtractable(false);
+
+        ms.rollback(mark);
+
+        assertTrue(ScopeChain.contains(ms.scope(), "a"));
+        assertFalse(ScopeChain.contains(ms.scope(), "b"));
+        assertEquals(1, ms.parameters().size());
+        assertEquals("int", ms.parameters().get(0).type());
+        assertTrue(ms.extractable());
+    }
+
+    @Test
+    public void testExtend_SharesAliasesButNotLaterScope() {
+        ms.addToScope(new Variable("a", "int"));
+        MatchState child = ms.extend();
+        child.addToScope(new Variable("b", "int"));
+        child.addAlias(new Variable("b", "int"));
+
+        assertTrue(ScopeChain.contains(child.scope(), "a"));
+        assertFalse(ScopeChain.contains(ms.scope(), "b"));
+        assertEquals(0, ms.getAliasID("b"));
+    }
+}
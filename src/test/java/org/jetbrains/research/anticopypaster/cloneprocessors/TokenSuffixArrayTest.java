@@ -0,0 +1,69 @@
+package org.jetbrains.research.anticopypaster.cloneprocessors;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TokenSuffixArrayTest {
+
+    /**
+    Finds the occurrences of a pattern by comparing it at every position
+     */
+    private List<Integer> naiveOccurrences(int[] tokens, int[] pattern) {
+        List<Integer> result = new ArrayList<>();
+        for (int i = 0; i + pattern.length <= tokens.length; i++)
+            if (Arrays.equals(Arrays.copyOfRange(tokens, i, i + pattern.length), pattern))
+                result.add(i);
+        return result;
+    }
+
+    @Test
+    public void testSuffixesAreSorted() {
+        int[] tokens = {2, 1, 3, 1, 3, 1};
+        assertArrayEquals(new int[]{5, 3, 1, 0, 4, 2}, TokenSuffixArray.buildSuffixes(tokens));
+    }
+
+    @Test
+    public void testLcp() {
+        int[] tokens = {2, 1, 3, 1, 3, 1};
+        int[] suffixes = TokenSuffixArray.buildSuffixes(tokens);
+        assertArrayEquals(new int[]{0, 1, 3, 0, 0, 2}, TokenSuffixArray.buildLcp(tokens, suffixes));
+    }
+
+    @Test
+    public void testRepeatedFragment() {
+        int[] tokens = {7, 4, 5, 9, 7, 4, 5, 7, 4};
+        TokenSuffixArray index = new TokenSuffixArray(tokens);
+        assertEquals(List.of(0, 4), index.occurrences(new int[]{7, 4, 5}));
+        assertEquals(List.of(0, 4, 7), index.occurrences(new int[]{7, 4}));
+        assertEquals(List.of(), index.occurrences(new int[]{4, 7}));
+    }
+
+    @Test
+    public void testPatternLongerThanSuffix() {
+        TokenSuffixArray index = new TokenSuffixArray(new int[]{1, 2, 3});
+        assertEquals(List.of(), index.occurrences(new int[]{2, 3, 4}));
+        assertEquals(List.of(1), index.occurrences(new int[]{2, 3}));
+    }
+
+    @Test
+    public void testEmpty() {
+        assertEquals(List.of(), new TokenSuffixArray(new int[0]).occurrences(new int[]{1}));
+        assertEquals(List.of(), new TokenSuffixArray(new int[]{1}).occurrences(new int[0]));
+    }
+
+    @Test
+    public void testMatchesNaiveSearch() {
+        Random random = new Random(42);
+        for (int run = 0; run < 500; run++) {
+            int[] tokens = random.ints(random.nextInt(60), 0, 4).toArray();
+            TokenSuffixArray index = new TokenSuffixArray(tokens);
+            int[] pattern = random.ints(1 + random.nextInt(4), 0, 4).toArray();
+            assertEquals(naiveOccurrences(tokens, pattern), index.occurrences(pattern));
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package org.jetbrains.research.anticopypaster.metrics.utils;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DepthAnalyzerTest {
+
+    @Test
+    public void testMethod() {
+        String code = "void f() {\n    if (x) {\n        y();\n    } else {\n        z();\n    }\n}";
+        DepthAnalyzer.Nesting nesting = DepthAnalyzer.analyze(code);
+        assertEquals(7, nesting.area());
+        assertEquals(2, nesting.depth());
+        assertEquals(7, nesting.lineCount());
+        assertEquals(code.length(), nesting.symbolCount());
+    }
+
+    @Test
+    public void testTrailingEmptyLinesAreIgnored() {
+        DepthAnalyzer.Nesting nesting = DepthAnalyzer.analyze("{\n\nx\n\n\n");
+        assertEquals(2, nesting.area());
+        assertEquals(1, nesting.depth());
+        assertEquals(6, nesting.lineCount());
+    }
+
+    /**
+    The single pass has to agree with the line-by-line depths on any text
+     */
+    @Test
+    public void testMatchesLineDepths() {
+        Random random = new Random(42);
+        char[] alphabet = {'{', '}', '\n', 'x', ' '};
+        for (int t = 0; t < 10000; t++) {
+            StringBuilder code = new StringBuilder();
+            int length = random.nextInt(40);
+            for (int i = 0; i < length; i++)
+                code.append(alphabet[random.nextInt(alphabet.length)]);
+            int area = 0;
+            int depth = 0;
+            for (int value : DepthAnalyzer.getNestingDepths(code.toString())) {
+                area += value;
+                depth = Math.max(depth, value);
+            }
+            DepthAnalyzer.Nesting nesting = DepthAnalyzer.analyze(code);
+            assertEquals(area, nesting.area(), code.toString());
+            assertEquals(depth, nesting.depth(), code.toString());
+        }
+    }
+}
@@ -5,6 +5,7 @@ import org.jetbrains.research.anticopypaster.metrics.features.FeaturesVector;
 import org.mockito.Mock;
 
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -24,6 +25,8 @@ public class FeaturesVectorMock {
                 .thenReturn(metricsArray);
         when(mockFeaturesVector.getFeatureValue(any(Feature.class)))
                 .thenAnswer(invocation -> (double) metricsArray[((Feature) invocation.getArgument(0)).getId()]);
+        when(mockFeaturesVector.getValue(anyInt()))
+                .thenAnswer(invocation -> metricsArray[invocation.<Integer>getArgument(0)]);
     }
 
     public FeaturesVector getMock() {
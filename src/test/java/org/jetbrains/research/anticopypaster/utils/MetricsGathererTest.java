@@ -1,9 +1,13 @@
 package org.jetbrains.research.anticopypaster.utils;
 
+import com.intellij.openapi.progress.EmptyProgressIndicator;
 import com.intellij.testFramework.fixtures.*;
 import org.jetbrains.research.anticopypaster.metrics.features.FeaturesVector;
 import org.junit.jupiter.api.*;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * Test class for the MetricsGatherer. Extends the LightJavaCodeInsightFixtureTestCase,
  * which is a class that was written for the express purpose of testing IntelliJ
@@ -45,6 +49,7 @@ public class MetricsGathererTest extends LightJavaCodeInsightFixtureTestCase {
      */
     public void testMetricsListSize() {
         MetricsGatherer metricsGatherer = new MetricsGatherer(getProject());
+        metricsGatherer.run(new EmptyProgressIndicator());
         System.out.println("Message = Metrics List Has 6 Methods");
         Assertions.assertEquals(6 , metricsGatherer.getMethodsMetrics().size());
     }
@@ -55,6 +60,7 @@ public class MetricsGathererTest extends LightJavaCodeInsightFixtureTestCase {
      */
     public void testMetricsListNotNull() {
         MetricsGatherer metricsGatherer = new MetricsGatherer(getProject());
+        metricsGatherer.run(new EmptyProgressIndicator());
         System.out.println("Message = MetricsList Not Null");
         Assertions.assertNotNull(metricsGatherer.getMethodsMetrics());
     }
@@ -66,10 +72,40 @@ public class MetricsGathererTest extends LightJavaCodeInsightFixtureTestCase {
      */
     public void testMetricsInListNoTestMethods() {
         MetricsGatherer metricsGatherer = new MetricsGatherer(getProject());
+        metricsGatherer.run(new EmptyProgressIndicator());
         System.out.println("Message = No Single Line Methods Gotten");
         for(FeaturesVector fv: metricsGatherer.getMethodsMetrics()){
             float[] arr = fv.buildArray();
             Assertions.assertNotEquals(1, arr[0]);
         }
     }
+
+    /**
+     * Tests that no module is sampled when all methods fit in the sample,
+     * however they are spread over the modules.
+     */
+    public void testAllocateUnderSampleSize() {
+        Map<String, Integer> methodCounts = new LinkedHashMap<>();
+        methodCounts.put("few files, many methods", 90);
+        methodCounts.put("many files, few methods", 10);
+        Assertions.assertTrue(MetricsGatherer.allocate(methodCounts, 100).isEmpty());
+    }
+
+    /**
+     * Tests that modules share the sample in proportion to their methods,
+     * and that the shares never add up to more than the sample size.
+     */
+    public void testAllocateOverSampleSize() {
+        Map<String, Integer> methodCounts = new LinkedHashMap<>();
+        methodCounts.put("a", 600);
+        methodCounts.put("b", 300);
+        methodCounts.put("c", 99);
+        methodCounts.put("d", 1);
+        Map<String, Integer> capacities = MetricsGatherer.allocate(methodCounts, 10);
+        Assertions.assertEquals(10, capacities.values().stream().mapToInt(Integer::intValue).sum());
+        Assertions.assertEquals(6, capacities.get("a"));
+        Assertions.assertEquals(3, capacities.get("b"));
+        Assertions.assertEquals(1, capacities.get("c"));
+        Assertions.assertEquals(0, capacities.get("d"));
+    }
 }
@@ -0,0 +1,121 @@
+package org.jetbrains.research.anticopypaster.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class QuantileSketchTest {
+
+    @Test
+    public void testPercentile_Empty() {
+        QuantileSketch sketch = new QuantileSketch();
+        assertEquals(0f, sketch.percentile(50), 0f);
+    }
+
+    @Test
+    public void testPercentile_Exact() {
+        QuantileSketch sketch = new QuantileSketch();
+        for (float value : new float[]{4f, 1f, 2f})
+            sketch.add(value);
+
+        assertEquals(1f, sketch.percentile(0), 0f);
+        assertEquals(1.2f, sketch.percentile(10), 0f);
+        assertEquals(2f, sketch.percentile(50), 0f);
+        assertEquals(3f, sketch.percentile(75), 0f);
+        assertEquals(4f, sketch.percentile(100), 0f);
+    }
+
+    @Test
+    public void testMerge() {
+        QuantileSketch first = new QuantileSketch();
+        QuantileSketch second = new QuantileSketch();
+        QuantileSketch all = new QuantileSketch();
+        for (int i = 0; i < 100; i++) {
+            (i % 2 == 0 ? first : second).add(i);
+            all.add(i);
+        }
+        first.merge(second);
+
+        assertEquals(100, first.size());
+        for (int p = 0; p <= 100; p += 5)
+            assertEquals(all.percentile(p), first.percentile(p), 0f);
+    }
+
+    @Test
+    public void testRemove() {
+        QuantileSketch sketch = new QuantileSketch();
+        for (float value : new float[]{4f, 1f, 2f, 8f, 3f})
+            sketch.add(value);
+        sketch.remove(8f);
+        sketch.remove(2f);
+
+        assertEquals(3, sketch.size());
+        assertEquals(1f, sketch.percentile(0), 0f);
+        assertEquals(3f, sketch.percentile(50), 0f);
+        assertEquals(4f, sketch.percentile(100), 0f);
+
+        assertEquals(2, sketch.removedSize());
+
+        sketch.remove(1f);
+        sketch.remove(3f);
+        sketch.remove(4f);
+        assertEquals(0f, sketch.percentile(50), 0f);
+        assertEquals(5, sketch.removedSize());
+    }
+
+    @Test
+    public void testMerge_KeepsRemovals() {
+        QuantileSketch first = new QuantileSketch();
+        QuantileSketch second = new QuantileSketch();
+        for (int i = 0; i < 10; i++)
+            first.add(i);
+        second.remove(9);
+        second.remove(8);
+        first.merge(second);
+
+        assertEquals(8, first.size());
+        assertEquals(7f, first.percentile(100), 0f);
+        assertEquals(3.5f, first.percentile(50), 0f);
+    }
+
+    @Test
+    public void testPercentile_Compacted() {
+        int capacity = 64;
+        int count = 100_000;
+        QuantileSketch sketch = new QuantileSketch(capacity);
+        float[] values = new float[count];
+        Random random = new Random(42);
+        for (int i = 0; i < count; i++) {
+            values[i] = (float) random.nextGaussian();
+            sketch.add(values[i]);
+        }
+        Arrays.sort(values);
+
+        assertEquals(count, sketch.size());
+        assertEquals(values[0], sketch.percentile(0), 0f);
+        assertEquals(values[count - 1], sketch.percentile(100), 0f);
+        for (int p = 1; p < 100; p++) {
+            // Ranks of the estimate and of the exact value stay within a few percent of each other.
+            int rank = Arrays.binarySearch(values, sketch.percentile(p));
+            if (rank < 0) rank = -rank - 1;
+            assertEquals(p * (count - 1) / 100.0, rank, count * 0.05);
+        }
+    }
+
+    @Test
+    public void testPercentileInterval() {
+        QuantileSketch sketch = new QuantileSketch();
+        for (int i = 0; i < 100; i++)
+            sketch.add(i);
+
+        float[] interval = sketch.percentileInterval(50, 1.96);
+        assertEquals(39f, interval[0], 0f);
+        assertEquals(60f, interval[1], 0f);
+        assertArrayEquals(new float[]{0f, 0f}, sketch.percentileInterval(0, 1.96), 0f);
+        assertArrayEquals(new float[]{99f, 99f}, sketch.percentileInterval(100, 1.96), 0f);
+        assertArrayEquals(new float[]{0f, 0f}, new QuantileSketch().percentileInterval(50, 1.96), 0f);
+    }
+}